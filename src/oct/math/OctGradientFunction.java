@@ -0,0 +1,16 @@
+package oct.math;
+
+/**
+ * Interface for custom functions that also know their gradient. The
+ * polygonizations can then use it instead of sampling the function, see
+ * OctPoly.setGradientMode().
+ */
+public interface OctGradientFunction extends OctFunction {
+
+	/**
+	 * To be implemented by the user, writes the gradient of the function
+	 * (df/dx, df/dy, df/dz) at x, y, z into the first 3 values of gradient.
+	 */
+	void computeGradient(float x, float y, float z, float[] gradient);
+
+}
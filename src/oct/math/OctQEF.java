@@ -0,0 +1,214 @@
+package oct.math;
+
+/**
+ * Quadratic error function of dual contouring: the sum of the squared
+ * distances of a point to planes, each given by a point and a normal. Only
+ * the symmetric matrix AtA, the vector Atb, btb and the mass point of the
+ * plane points are kept, so adding a plane and solving don't allocate
+ * anything, and the QEFs of the children of a node can simply be added to
+ * get the QEF of the node. The minimum is found relative to the mass point with a 3x3
+ * Jacobi eigen solve and a truncated pseudo-inverse.
+ */
+public class OctQEF {
+
+	// AtA (upper triangle), Atb and btb, for the planes n . x = n . p
+	private double a00, a01, a02, a11, a12, a22;
+	private double b0, b1, b2;
+	private double btb;
+	// mass point
+	private double mx, my, mz;
+	private int count;
+
+	// eigen solve, only allocated by solve()
+	private double[] m;
+	private double[] v;
+
+	public OctQEF() {
+	}
+
+	public void clear() {
+		a00 = a01 = a02 = a11 = a12 = a22 = 0;
+		b0 = b1 = b2 = btb = 0;
+		mx = my = mz = 0;
+		count = 0;
+	}
+
+	/**
+	 * Adds the plane through the point p with the normal n.
+	 */
+	public void add(float _px, float _py, float _pz, float _nx, float _ny,
+			float _nz) {
+		double d = (double) _nx * _px + (double) _ny * _py + (double) _nz * _pz;
+		a00 += (double) _nx * _nx;
+		a01 += (double) _nx * _ny;
+		a02 += (double) _nx * _nz;
+		a11 += (double) _ny * _ny;
+		a12 += (double) _ny * _nz;
+		a22 += (double) _nz * _nz;
+		b0 += _nx * d;
+		b1 += _ny * d;
+		b2 += _nz * d;
+		btb += d * d;
+		mx += _px;
+		my += _py;
+		mz += _pz;
+		count++;
+	}
+
+	/**
+	 * Adds the planes of another QEF, e.g. to merge the QEFs of the children
+	 * of a node.
+	 */
+	public void add(OctQEF _q) {
+		a00 += _q.a00;
+		a01 += _q.a01;
+		a02 += _q.a02;
+		a11 += _q.a11;
+		a12 += _q.a12;
+		a22 += _q.a22;
+		b0 += _q.b0;
+		b1 += _q.b1;
+		b2 += _q.b2;
+		btb += _q.btb;
+		mx += _q.mx;
+		my += _q.my;
+		mz += _q.mz;
+		count += _q.count;
+	}
+
+	/**
+	 * Copies the planes of another QEF.
+	 */
+	public void set(OctQEF _q) {
+		clear();
+		add(_q);
+	}
+
+	/**
+	 * Number of planes added.
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Writes the mean of the points of the planes into _result.
+	 */
+	public void getMassPoint(float[] _result) {
+		_result[0] = (float) (mx / count);
+		_result[1] = (float) (my / count);
+		_result[2] = (float) (mz / count);
+	}
+
+	/**
+	 * Writes the point with the smallest error into _result, and returns the
+	 * error. The directions where the planes don't constrain the point enough
+	 * (singular values of A below _clip) are ignored, the point then stays
+	 * as close as possible to the mass point along them.
+	 */
+	public float solve(float _clip, float[] _result) {
+		if (count == 0) {
+			_result[0] = _result[1] = _result[2] = 0;
+			return 0;
+		}
+		double cx = mx / count;
+		double cy = my / count;
+		double cz = mz / count;
+		// Atb relative to the mass point: Atb - AtA c
+		double r0 = b0 - (a00 * cx + a01 * cy + a02 * cz);
+		double r1 = b1 - (a01 * cx + a11 * cy + a12 * cz);
+		double r2 = b2 - (a02 * cx + a12 * cy + a22 * cz);
+		eigen();
+		// x = V diag(1 / lambda) Vt r, the eigen values are the squared
+		// singular values of A
+		double clip2 = (double) _clip * _clip;
+		double x0 = 0;
+		double x1 = 0;
+		double x2 = 0;
+		for (int k = 0; k < 3; k++) {
+			double lambda = m[k * 4];
+			if (lambda < clip2 || lambda <= 0)
+				continue;
+			double w = (v[k] * r0 + v[3 + k] * r1 + v[6 + k] * r2) / lambda;
+			x0 += v[k] * w;
+			x1 += v[3 + k] * w;
+			x2 += v[6 + k] * w;
+		}
+		_result[0] = (float) (cx + x0);
+		_result[1] = (float) (cy + x1);
+		_result[2] = (float) (cz + x2);
+		return getError(_result[0], _result[1], _result[2]);
+	}
+
+	/**
+	 * Sum of the squared distances of a point to the planes.
+	 */
+	public float getError(float _x, float _y, float _z) {
+		// xt AtA x - 2 xt Atb + btb
+		double e = a00 * _x * _x + a11 * _y * _y + a22 * _z * _z + 2
+				* (a01 * _x * _y + a02 * _x * _z + a12 * _y * _z) - 2
+				* (b0 * _x + b1 * _y + b2 * _z) + btb;
+		return (float) Math.max(0, e);
+	}
+
+	// Jacobi rotations on AtA: eigen values on the diagonal of m, eigen
+	// vectors in the columns of v (row major)
+	private void eigen() {
+		if (m == null) {
+			m = new double[9];
+			v = new double[9];
+		}
+		m[0] = a00;
+		m[1] = a01;
+		m[2] = a02;
+		m[3] = a01;
+		m[4] = a11;
+		m[5] = a12;
+		m[6] = a02;
+		m[7] = a12;
+		m[8] = a22;
+		for (int i = 0; i < 9; i++) {
+			v[i] = (i % 4 == 0) ? 1 : 0;
+		}
+		double scale = Math.abs(a00) + Math.abs(a11) + Math.abs(a22);
+		for (int sweep = 0; sweep < 16; sweep++) {
+			double off = m[1] * m[1] + m[2] * m[2] + m[5] * m[5];
+			if (off <= 1e-30 * scale * scale)
+				break;
+			rotate(0, 1);
+			rotate(0, 2);
+			rotate(1, 2);
+		}
+	}
+
+	private void rotate(int _p, int _q) {
+		double apq = m[_p * 3 + _q];
+		if (apq == 0)
+			return;
+		double theta = (m[_q * 4] - m[_p * 4]) / (2 * apq);
+		double t = 1 / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+		if (theta < 0)
+			t = -t;
+		double c = 1 / Math.sqrt(t * t + 1);
+		double s = t * c;
+		for (int k = 0; k < 3; k++) {
+			double mkp = m[k * 3 + _p];
+			double mkq = m[k * 3 + _q];
+			m[k * 3 + _p] = c * mkp - s * mkq;
+			m[k * 3 + _q] = s * mkp + c * mkq;
+		}
+		for (int k = 0; k < 3; k++) {
+			double mpk = m[_p * 3 + k];
+			double mqk = m[_q * 3 + k];
+			m[_p * 3 + k] = c * mpk - s * mqk;
+			m[_q * 3 + k] = s * mpk + c * mqk;
+		}
+		for (int k = 0; k < 3; k++) {
+			double vkp = v[k * 3 + _p];
+			double vkq = v[k * 3 + _q];
+			v[k * 3 + _p] = c * vkp - s * vkq;
+			v[k * 3 + _q] = s * vkp + c * vkq;
+		}
+	}
+
+}
@@ -0,0 +1,116 @@
+/**
+ * OCT Octree
+ * A Processing library to create, modify and display Octree structures.
+ * http://www.thomaswegener.ch/OCT
+ *
+ * Based on:
+ * Hanan Samet, Neighbor finding in images represented by octrees
+ * Computer Vision, Graphics, and Image Processing, Volume 46, Issue 3, June 1989, Pages 367-386
+ * http://dx.doi.org/10.1016/0734-189X(89)90038-8.
+ * (http://www.sciencedirect.com/science/article/pii/0734189X89900388)
+ *
+ * Copyright (C) 2015 Thomas Wegener
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author      Thomas Wegener
+ * @modified    2015
+ * @version     0.1 (1)
+ */
+
+package oct.octree;
+
+/**
+ * Morton (Z-order) codes of the nodes. The R, S and T codes are interleaved
+ * bit by bit (R is the lowest bit), so that the 8 children of a node have
+ * consecutive codes and the code of the parent is the code of its children
+ * shifted by 3 bits. Each coordinate uses 21 bits.
+ */
+public class OctMorton {
+
+	/**
+	 * Interleaves the lowest 21 bits of the 3 coordinates.
+	 */
+	public static long encode(int _r, int _s, int _t) {
+		return spread(_r) | (spread(_s) << 1) | (spread(_t) << 2);
+	}
+
+	public static int decodeR(long _code) {
+		return compact(_code);
+	}
+
+	public static int decodeS(long _code) {
+		return compact(_code >>> 1);
+	}
+
+	public static int decodeT(long _code) {
+		return compact(_code >>> 2);
+	}
+
+	/**
+	 * Gets the code of a node at its own level. The R, S, T codes are read as
+	 * unsigned 16 bits values, so that out of bounds nodes with negative codes
+	 * still have a unique code.
+	 */
+	public static long getCode(OctNode _n) {
+		return encode(_n.codeR & 0xFFFF, _n.codeS & 0xFFFF, _n.codeT & 0xFFFF);
+	}
+
+	/**
+	 * Gets the node of the specified level from a code created with
+	 * getCode(OctNode).
+	 */
+	public static OctNode getNode(long _code, int _level) {
+		return new OctNode((short) decodeR(_code), (short) decodeS(_code),
+				(short) decodeT(_code), (byte) _level);
+	}
+
+	/**
+	 * Gets a single key for a node, made of its code and its level, that can
+	 * be stored in a long array.
+	 */
+	public static long getKey(OctNode _n) {
+		return ((long) _n.level << 48) | getCode(_n);
+	}
+
+	/**
+	 * Gets the node from a key created with getKey(OctNode).
+	 */
+	public static OctNode getNode(long _key) {
+		return getNode(_key & 0xFFFFFFFFFFFFL, (int) (_key >>> 48));
+	}
+
+	private static long spread(int _v) {
+		long x = _v & 0x1FFFFFL;
+		x = (x | (x << 32)) & 0x1F00000000FFFFL;
+		x = (x | (x << 16)) & 0x1F0000FF0000FFL;
+		x = (x | (x << 8)) & 0x100F00F00F00F00FL;
+		x = (x | (x << 4)) & 0x10C30C30C30C30C3L;
+		x = (x | (x << 2)) & 0x1249249249249249L;
+		return x;
+	}
+
+	private static int compact(long _code) {
+		long x = _code & 0x1249249249249249L;
+		x = (x | (x >>> 2)) & 0x10C30C30C30C30C3L;
+		x = (x | (x >>> 4)) & 0x100F00F00F00F00FL;
+		x = (x | (x >>> 8)) & 0x1F0000FF0000FFL;
+		x = (x | (x >>> 16)) & 0x1F00000000FFFFL;
+		x = (x | (x >>> 32)) & 0x1FFFFFL;
+		return (int) x;
+	}
+
+}
@@ -1244,29 +1244,32 @@ public class OctNode implements java.io.Serializable {
      */
     public OctRST intersectPoint(OctRST start, OctRST direction, float minDist, float maxDist) {
     	direction = direction.normalize();
-    	OctRST invDir = new OctRST(1f / direction.r, 1f / direction.s, 1f / direction.t);
-   	
     	OctRST max = this.getMax();
     	OctRST min = this.getMin();
-   		
-        boolean signDirX = invDir.r < 0;
-        boolean signDirY = invDir.s < 0;
-        boolean signDirZ = invDir.t < 0;
-
-        OctRST bbox = signDirX ? max : min;
-        double tmin = (bbox.r-start.r) * invDir.r;
-        bbox = signDirX ? min : max;
-        double tmax = (bbox.r-start.r) * invDir.r;
-        bbox = signDirY ? max : min;
-        double tymin = (bbox.s-start.s) * invDir.s;
-        bbox = signDirY ? min : max;
-        double tymax = (bbox.s-start.s) * invDir.s;
- 
-      //  PApplet.println(tmin);
-      //  PApplet.println(tmax);
-        
+    	float tmin = intersectBox(min.r, min.s, min.t, max.r, max.s, max.t,
+    			start.r, start.s, start.t, 1f / direction.r, 1f / direction.s,
+    			1f / direction.t, minDist, maxDist);
+    	if (Float.isNaN(tmin))
+    		return null;
+    	return new OctRST(direction.scale(tmin).add(start));
+    }
+
+    /**
+     * Slab test of intersectPoint(), without allocation. The direction of the
+     * ray is given by its inverse. Returns the distance at which the ray enters
+     * the box, or NaN if the ray misses the box between minDist and maxDist.
+     */
+    public static float intersectBox(float minR, float minS, float minT,
+    		float maxR, float maxS, float maxT, float startR, float startS,
+    		float startT, float invR, float invS, float invT, float minDist,
+    		float maxDist) {
+        double tmin = ((invR < 0 ? maxR : minR) - startR) * invR;
+        double tmax = ((invR < 0 ? minR : maxR) - startR) * invR;
+        double tymin = ((invS < 0 ? maxS : minS) - startS) * invS;
+        double tymax = ((invS < 0 ? minS : maxS) - startS) * invS;
+
         if ((tmin > tymax) || (tymin > tmax)) {
-            return null;
+            return Float.NaN;
         }
         if (tymin > tmin) {
             tmin = tymin;
@@ -1275,13 +1278,11 @@ public class OctNode implements java.io.Serializable {
             tmax = tymax;
         }
 
-        bbox = signDirZ ? max : min;
-        double tzmin = (bbox.t-start.t) * invDir.t;
-        bbox = signDirZ ? min : max;
-        double tzmax = (bbox.t-start.t) * invDir.t;
+        double tzmin = ((invT < 0 ? maxT : minT) - startT) * invT;
+        double tzmax = ((invT < 0 ? minT : maxT) - startT) * invT;
 
         if ((tmin > tzmax) || (tzmin > tmax)) {
-            return null;
+            return Float.NaN;
         }
         if (tzmin > tmin) {
             tmin = tzmin;
@@ -1289,12 +1290,10 @@ public class OctNode implements java.io.Serializable {
         if (tzmax < tmax) {
             tmax = tzmax;
         }
-       // PApplet.println(tmin);
-       // PApplet.println(tmax);
         if ((tmin < maxDist) && (tmax > minDist)) {
-            return new OctRST(direction.normalize().scale((float) tmin).add(start));
+            return (float) tmin;
         }
-        return null;
+        return Float.NaN;
     }
 
 	/**
@@ -0,0 +1,456 @@
+/**
+ * OCT Octree
+ * A Processing library to create, modify and display Octree structures.
+ * http://www.thomaswegener.ch/OCT
+ *
+ * Based on:
+ * Hanan Samet, Neighbor finding in images represented by octrees
+ * Computer Vision, Graphics, and Image Processing, Volume 46, Issue 3, June 1989, Pages 367-386
+ * http://dx.doi.org/10.1016/0734-189X(89)90038-8.
+ * (http://www.sciencedirect.com/science/article/pii/0734189X89900388)
+ *
+ * Copyright (C) 2015 Thomas Wegener
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author      Thomas Wegener
+ * @modified    2015
+ * @version     0.1 (1)
+ */
+
+package oct.octree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
+import oct.enums.OCT_FACE;
+
+/**
+ * A sorted snapshot of the nodes of an octree. The nodes are ordered by the
+ * Morton code of their first cell at the depth of the index, bigger nodes
+ * first when they start on the same cell. This way the descendants of a node
+ * are a contiguous range just after the node, and the ancestors of a node are
+ * before it. Out of bounds nodes are not indexed. The index does not follow
+ * the changes made to the octree afterwards. Nodes deeper than MAX_DEPTH are
+ * not indexed either.
+ */
+public class OctNodeIndex {
+
+	// *************************************************************************************
+	// VARIABLES
+	// *************************************************************************************
+
+	// deepest level that fits in the keys
+	public static final int MAX_DEPTH = 19;
+
+	// see getCell()
+	public static final int EMPTY = -1;
+	public static final int INTERNAL = -2;
+
+	protected int depth = 0;
+	protected int size = 0;
+
+	// first cell << 5 | level, sorted
+	protected long[] keys;
+	protected OctNode[] nodes;
+
+	// prefix max of the last cell covered, and the node covering it
+	protected long[] coverEnd;
+	protected int[] coverIndex;
+
+	// exposed faces, computed on demand
+	protected int[] faceMasks;
+
+	// *************************************************************************************
+	// CONSTRUCTORS
+	// *************************************************************************************
+
+	/**
+	 * Creates an index of the nodes. Out of bounds nodes are ignored.
+	 */
+	public OctNodeIndex(Collection<OctNode> _nodes) {
+		this(_nodes, 0);
+	}
+
+	/**
+	 * Creates an index of the nodes with a minimum depth, so that the cells of
+	 * two indexes can be compared.
+	 */
+	public OctNodeIndex(Collection<OctNode> _nodes, int _depth) {
+		depth = Math.max(0, Math.min(_depth, MAX_DEPTH));
+		for (OctNode n : _nodes) {
+			if (isInBounds(n)) {
+				size++;
+				if (depth < n.level)
+					depth = n.level;
+			}
+		}
+		keys = new long[size];
+		int i = 0;
+		for (OctNode n : _nodes) {
+			if (isInBounds(n))
+				keys[i++] = getKey(n.codeR, n.codeS, n.codeT, n.level);
+		}
+		Arrays.sort(keys);
+		// duplicates, if the collection is not a set
+		int unique = 0;
+		for (i = 0; i < size; i++) {
+			if (i == 0 || keys[i] != keys[i - 1])
+				keys[unique++] = keys[i];
+		}
+		size = unique;
+		// the index keeps the nodes of the collection, not copies
+		nodes = new OctNode[size];
+		for (OctNode n : _nodes) {
+			if (isInBounds(n))
+				nodes[lowerBound(getKey(n.codeR, n.codeS, n.codeT, n.level))] = n;
+		}
+		coverEnd = new long[size];
+		coverIndex = new int[size];
+		for (i = 0; i < size; i++) {
+			int l = (int) (keys[i] & 31);
+			long first = keys[i] >>> 5;
+			long last = first + (1L << (3 * (depth - l)));
+			if (i == 0 || last > coverEnd[i - 1]) {
+				coverEnd[i] = last;
+				coverIndex[i] = i;
+			} else {
+				coverEnd[i] = coverEnd[i - 1];
+				coverIndex[i] = coverIndex[i - 1];
+			}
+		}
+	}
+
+	// *************************************************************************************
+	// GETTERS
+	// *************************************************************************************
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Gets the level of the smallest indexed node.
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Gets the node at a position of the sorted order.
+	 */
+	public OctNode getNode(int _i) {
+		return nodes[_i];
+	}
+
+	// *************************************************************************************
+	// QUERIES
+	// *************************************************************************************
+
+	/**
+	 * Gets the position of the node in the sorted order, -1 if the node is not
+	 * in the index.
+	 */
+	public int find(OctNode _n) {
+		return find(_n.codeR, _n.codeS, _n.codeT, _n.level);
+	}
+
+	/**
+	 * Same as find(OctNode), from the codes and the level of the node.
+	 */
+	public int find(int _r, int _s, int _t, int _level) {
+		if (!isInBounds(_r, _s, _t, _level) || _level > depth)
+			return -1;
+		long key = getKey(_r, _s, _t, _level);
+		int i = lowerBound(key);
+		if (i < size && keys[i] == key)
+			return i;
+		return -1;
+	}
+
+	/**
+	 * Describes a cell of the tree made by the indexed nodes, with one search:
+	 * gets the position of the node if the cell is an indexed node without
+	 * indexed descendants, INTERNAL if there are indexed nodes inside it, and
+	 * EMPTY if there is nothing. Used to traverse the tree from the top.
+	 */
+	public int getCell(int _r, int _s, int _t, int _level) {
+		if (!isInBounds(_r, _s, _t, _level) || _level > depth)
+			return EMPTY;
+		long key = getKey(_r, _s, _t, _level);
+		long lastKey = getLastKey(_r, _s, _t, _level);
+		int i = lowerBound(key);
+		if (i < size && keys[i] == key) {
+			if (i + 1 < size && keys[i + 1] < lastKey)
+				return INTERNAL;
+			return i;
+		}
+		if (i < size && keys[i] < lastKey)
+			return INTERNAL;
+		return EMPTY;
+	}
+
+	/**
+	 * Returns true if the node is in the index.
+	 */
+	public boolean contains(OctNode _n) {
+		return find(_n) >= 0;
+	}
+
+	/**
+	 * Gets the biggest indexed node that contains the node (not included).
+	 * Returns null if there is none.
+	 */
+	public OctNode getCover(OctNode _n) {
+		int i = getCoverIndex(_n.codeR, _n.codeS, _n.codeT, _n.level);
+		if (i < 0)
+			return null;
+		return nodes[i];
+	}
+
+	/**
+	 * Returns true if one of the ancestors of the node is in the index.
+	 */
+	public boolean isCovered(OctNode _n) {
+		return getCoverIndex(_n.codeR, _n.codeS, _n.codeT, _n.level) >= 0;
+	}
+
+	/**
+	 * Batch version of isCovered(OctNode).
+	 */
+	public boolean[] isCovered(ArrayList<OctNode> _nodes) {
+		boolean[] t = new boolean[_nodes.size()];
+		for (int i = 0; i < t.length; i++) {
+			t[i] = isCovered(_nodes.get(i));
+		}
+		return t;
+	}
+
+	/**
+	 * Gets the indexed nodes that are contained in the node (not included).
+	 */
+	public ArrayList<OctNode> getDescendants(OctNode _n) {
+		ArrayList<OctNode> t = new ArrayList<OctNode>();
+		if (!isInBounds(_n.codeR, _n.codeS, _n.codeT, _n.level)
+				|| _n.level >= depth)
+			return t;
+		int from = lowerBound(getKey(_n.codeR, _n.codeS, _n.codeT, _n.level));
+		int to = lowerBound(getLastKey(_n.codeR, _n.codeS, _n.codeT, _n.level));
+		for (int i = from; i < to; i++) {
+			if (nodes[i].level > _n.level)
+				t.add(nodes[i]);
+		}
+		return t;
+	}
+
+	/**
+	 * Gets the nodes that are contained in another node of the index. Only the
+	 * containing nodes with a level equal or larger than the specified level
+	 * are taken into account. One linear sweep.
+	 */
+	public ArrayList<OctNode> getNested(int _minLevel) {
+		ArrayList<OctNode> t = new ArrayList<OctNode>();
+		long last = -1;
+		for (int i = 0; i < size; i++) {
+			int l = nodes[i].level;
+			if (l < _minLevel)
+				continue;
+			long first = keys[i] >>> 5;
+			long end = first + (1L << (3 * (depth - l)));
+			if (end <= last)
+				t.add(nodes[i]);
+			else
+				last = end;
+		}
+		return t;
+	}
+
+	/**
+	 * Gets a mask of the exposed faces of each node, in the sorted order. The
+	 * masks are computed once, in parallel. For a node, the bit of a face
+	 * (ordinal of OCT_FACE) is set if nothing touches the face, and the bit of
+	 * the face + 6 is set if only smaller nodes touch it, so that some parts
+	 * of the face are exposed (see getExposedParts()).
+	 */
+	public synchronized int[] getFaceMasks() {
+		if (faceMasks == null) {
+			final int[] masks = new int[size];
+			OctParallel.run(size, 1024, new OctParallel.Task() {
+				public void run(int _from, int _to) {
+					for (int i = _from; i < _to; i++) {
+						OctNode n = nodes[i];
+						for (OCT_FACE f : FACES) {
+							int e = getExposure(n.codeR + f.r, n.codeS + f.s,
+									n.codeT + f.t, n.level);
+							if (e == EXPOSED)
+								masks[i] |= 1 << f.ordinal();
+							else if (e == PARTLY_EXPOSED)
+								masks[i] |= 1 << (f.ordinal() + 6);
+						}
+					}
+				}
+			});
+			faceMasks = masks;
+		}
+		return faceMasks;
+	}
+
+	/**
+	 * Gets the exposed parts of a face of the node at a position of the sorted
+	 * order, as smaller cells whose face is exposed. Only useful for the faces
+	 * marked as partly exposed by getFaceMasks().
+	 */
+	public ArrayList<OctNode> getExposedParts(int _i, OCT_FACE _f) {
+		ArrayList<OctNode> t = new ArrayList<OctNode>();
+		OctNode n = nodes[_i];
+		addExposedParts(n.codeR, n.codeS, n.codeT, n.level, _f, t);
+		return t;
+	}
+
+	/**
+	 * Gets the first cell (at the depth of the index) of the node at a position
+	 * of the sorted order.
+	 */
+	protected long getFirstCell(int _i) {
+		return keys[_i] >>> 5;
+	}
+
+	/**
+	 * Gets the first position between _from and _to of a node starting on or
+	 * after the cell (at the depth of the index).
+	 */
+	protected int getFirst(long _cell, int _from, int _to) {
+		int lo = _from;
+		int hi = _to;
+		long key = _cell << 5;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (keys[mid] < key)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	// *************************************************************************************
+	// PRIVATE
+	// *************************************************************************************
+
+	private static final OCT_FACE[] FACES = OCT_FACE.values();
+	private static final int HIDDEN = 0;
+	private static final int EXPOSED = 1;
+	private static final int PARTLY_EXPOSED = 2;
+
+	// what a face sees of the neighbor cell
+	private int getExposure(int _r, int _s, int _t, int _level) {
+		if (!isInBounds(_r, _s, _t, _level))
+			return EXPOSED;
+		if (_level > depth)
+			return getCoverIndex(_r, _s, _t, _level) >= 0 ? HIDDEN : EXPOSED;
+		// one search for the node, its cover and its descendants
+		long key = getKey(_r, _s, _t, _level);
+		long lastKey = ((key >>> 5) + (1L << (3 * (depth - _level)))) << 5;
+		int i = lowerBound(key);
+		if (i < size && keys[i] == key)
+			return HIDDEN;
+		if (i > 0 && coverEnd[i - 1] >= (lastKey >>> 5))
+			return HIDDEN;
+		if (i < size && keys[i] < lastKey)
+			return PARTLY_EXPOSED;
+		return EXPOSED;
+	}
+
+	private void addExposedParts(int _r, int _s, int _t, int _level,
+			OCT_FACE _f, ArrayList<OctNode> _list) {
+		// the 4 children on the face
+		for (int k = 0; k < 8; k++) {
+			if ((_f.r != 0 && (k & 1) != (_f.r > 0 ? 1 : 0))
+					|| (_f.s != 0 && (k >> 1 & 1) != (_f.s > 0 ? 1 : 0))
+					|| (_f.t != 0 && (k >> 2 & 1) != (_f.t > 0 ? 1 : 0)))
+				continue;
+			int r = 2 * _r + (k & 1);
+			int s = 2 * _s + (k >> 1 & 1);
+			int t = 2 * _t + (k >> 2 & 1);
+			int e = getExposure(r + _f.r, s + _f.s, t + _f.t, _level + 1);
+			if (e == EXPOSED)
+				_list.add(new OctNode(r, s, t, _level + 1));
+			else if (e == PARTLY_EXPOSED)
+				addExposedParts(r, s, t, _level + 1, _f, _list);
+		}
+	}
+
+	private int getCoverIndex(int _r, int _s, int _t, int _level) {
+		if (!isInBounds(_r, _s, _t, _level) || size == 0)
+			return -1;
+		int r = _r;
+		int s = _s;
+		int t = _t;
+		int level = _level;
+		if (level > depth) {
+			r >>= level - depth;
+			s >>= level - depth;
+			t >>= level - depth;
+			level = depth;
+			int i = find(r, s, t, level);
+			if (i >= 0)
+				return i;
+		}
+		// all the nodes before are starting on or before the first cell
+		int i = lowerBound(getKey(r, s, t, level)) - 1;
+		if (i >= 0 && coverEnd[i] >= (getLastKey(r, s, t, level) >>> 5))
+			return coverIndex[i];
+		return -1;
+	}
+
+	// key of the first cell of the node
+	private long getKey(int _r, int _s, int _t, int _level) {
+		return (OctMorton.encode(_r, _s, _t) << (3 * (depth - _level) + 5))
+				| _level;
+	}
+
+	// key of the first cell after the node
+	private long getLastKey(int _r, int _s, int _t, int _level) {
+		long first = OctMorton.encode(_r, _s, _t) << (3 * (depth - _level));
+		return (first + (1L << (3 * (depth - _level)))) << 5;
+	}
+
+	private int lowerBound(long _key) {
+		int lo = 0;
+		int hi = size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (keys[mid] < _key)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	private static boolean isInBounds(OctNode _n) {
+		return isInBounds(_n.codeR, _n.codeS, _n.codeT, _n.level);
+	}
+
+	private static boolean isInBounds(int _r, int _s, int _t, int _level) {
+		if (_level > MAX_DEPTH)
+			return false;
+		int m = 1 << _level;
+		return _r >= 0 && _s >= 0 && _t >= 0 && _r < m && _s < m && _t < m;
+	}
+
+}
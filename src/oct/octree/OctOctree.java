@@ -33,11 +33,15 @@
 
 package oct.octree;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.PriorityQueue;
 
 import oct.enums.OCT_EDGE;
 import oct.enums.OCT_ENUM;
@@ -46,7 +50,10 @@ import oct.enums.OCT_VERTEX;
 import oct.math.OctFunction;
 import processing.core.PApplet;
 import processing.core.PConstants;
+import processing.core.PMatrix3D;
+import processing.core.PShape;
 import processing.core.PVector;
+import processing.opengl.PGraphicsOpenGL;
 
 /**
  * This is the main class of the library. Here are included all the methods that
@@ -79,6 +86,18 @@ public class OctOctree implements java.io.Serializable {
 	public HashSet<OctNode> nodeList;
 	public HashSet<OctNode> selectedNodes = new HashSet<OctNode>();
 
+	// caches built from the nodes: sorted index, boundary faces and retained
+	// shapes (one per drawing mode)
+	protected transient int modCount = 0;
+	private boolean retained = false;
+	private transient OctNodeIndex index;
+	private transient float[] boundaryQuads;
+	private transient PShape[] shapes;
+	private transient HashSet<OctNode> cacheNodeList;
+	private transient int cacheSize;
+	private transient int cacheModCount;
+	private transient float[] cacheBounds = new float[6];
+
 	// *************************************************************************************
 	// CONSTRUCTORS
 	// *************************************************************************************
@@ -95,7 +114,8 @@ public class OctOctree implements java.io.Serializable {
 	}
 	
 	/**
-	 * Creates a new Octree.
+	 * Creates a new Octree sharing the nodes and the selection of _octree. The
+	 * caches are not shared, see invalidate().
 	 */
 	public OctOctree(PApplet _p5, OctOctree _octree) {
 		p5 = _p5;
@@ -279,6 +299,7 @@ public class OctOctree implements java.io.Serializable {
 	 * (0,0,0).
 	 */
 	public void clear() {
+		modCount++;
 		nodeList.clear();
 		dimension = new OctXYZ();
 		origin = new OctXYZ();
@@ -290,6 +311,7 @@ public class OctOctree implements java.io.Serializable {
 	 * Clears only the list of nodes.
 	 */
 	public void clearNodes() {
+		modCount++;
 		nodeList.clear();
 	}
 
@@ -302,6 +324,7 @@ public class OctOctree implements java.io.Serializable {
 	 * Adds the node that contains the point at the specified level.
 	 */
 	public void addPoint(OctXYZ _tempPoint,int _level) {
+		modCount++;
 		OctRST coord = _tempPoint.toRST(this);
 		nodeList.add(new OctNode(PApplet.floor(coord.r*(1<<_level)),PApplet.floor(coord.s*(1<<_level)),PApplet.floor(coord.t*(1<<_level)),_level));
 	}
@@ -315,6 +338,7 @@ public class OctOctree implements java.io.Serializable {
 	 * node that are out of bounds or have a level outside the min/max depth.
 	 */
 	public void addNode(OctNode _tempNode) {
+		modCount++;
 		nodeList.add(_tempNode);
 	}
 
@@ -322,6 +346,7 @@ public class OctOctree implements java.io.Serializable {
 	 * Removes a node. If the node is not in the octree, does nothing.
 	 */
 	public void deleteNode(OctNode _tempNode) {
+		modCount++;
 		nodeList.remove(_tempNode);
 	}
 
@@ -329,6 +354,7 @@ public class OctOctree implements java.io.Serializable {
 	 * Adds a node. If the node is already in the octree, prints error.
 	 */
 	public void addNodeVerbose(OctNode _tempNode) {
+		modCount++;
 		if (_tempNode != null) {
 			if (nodeList.contains(_tempNode)) {
 				PApplet.println("ERROR in nodeAdd: node already in octree.");
@@ -341,6 +367,7 @@ public class OctOctree implements java.io.Serializable {
 	 * Removes a node. If the node is not in the octree, prints error.
 	 */
 	public void deleteNodeVerbose(OctNode _tempNode) {
+		modCount++;
 		if (_tempNode != null) {
 			if (nodeList.contains(_tempNode)) {
 				nodeList.remove(_tempNode);
@@ -385,80 +412,413 @@ public class OctOctree implements java.io.Serializable {
 		}
 	}
 
-	public void selectNode(OctXYZ start, OctXYZ end) {
-		//selectedNodes.addAll( this.getRayNodes(start,end).keySet());
-		OctNode closest = this.getClosestNode( start,  end);
-		for (OctNode _tempNode : this.nodeList) {
-			if (_tempNode.equals(closest))
-			{_tempNode.isSelected=true;
-			selectedNodes.add(_tempNode);
-			//PApplet.println("one node selected");
-			}
+	/**
+	 * Selects the first node hit by a ray. The direction is a vector in XYZ
+	 * coordinates, its length does not matter. Does nothing if no node is hit.
+	 */
+	public void selectNode(OctXYZ start, OctXYZ direction) {
+		OctRayHit hit = this.getRayHit(start, direction);
+		if (hit != null) {
+			hit.node.isSelected = true;
+			selectedNodes.add(hit.node);
 		}
-	}	
+	}
 
-	private HashMap<OctNode,Float> getRayNodes(OctXYZ start, OctXYZ end) {
-		//PApplet.println("getraytnode");
-		OctOctree tempTree = new OctOctree(p5,1000,1000,1000);
-		tempTree.dimension=this.dimension;
-		tempTree.origin=this.origin;
-		tempTree.maxD=this.maxD;
-		tempTree.minD=this.minD;
-		
-		HashMap<OctNode,Float> _tempNodes = new HashMap<OctNode, Float>();
-		ArrayList<OctNode> listOfNodes = new ArrayList<OctNode>();
-		ArrayList<OctNode> listOfNodes2 = new ArrayList<OctNode>();
-
-		tempTree.algGenerate(this.minD);
-		for (OctNode _tempNode : tempTree.nodeList) {
-			//PApplet.println('1');
-			OctRST point = _tempNode.intersectPoint(start.toRST(this), end.toRST(this),-999999999,999999999);
-			if (point != null) {
-				//PApplet.println("point found");
-				_tempNodes.put(_tempNode, point.sub(start.toRST(this)).getNorm());
-				listOfNodes.add(_tempNode);
-				//selectedNodes.add(_tempNode);
-			}
+	// *************************************************************************************
+	// QUERIES
+	// *************************************************************************************
+
+	/**
+	 * Gets the first node hit by a ray, or null if there is none. The
+	 * direction is a vector in XYZ coordinates, its length does not matter.
+	 * The traversal only visits the cells of the octree that contain nodes and
+	 * are crossed by the ray, front to back, and stops at the first hit. Out
+	 * of bounds nodes are ignored.
+	 */
+	public OctRayHit getRayHit(OctXYZ _start, OctXYZ _direction) {
+		float length = _direction.getNorm();
+		if (length == 0) {
+			PApplet.println("ERROR in getRayHit: direction cannot be 0. 'Null' returned.");
+			return null;
 		}
-		tempTree.clearNodes();
-		listOfNodes2.addAll(listOfNodes);
-		listOfNodes.clear();
-		for (int i = 0; i<this.maxD-this.minD; i++) {
-			for (OctNode _tempNode : listOfNodes2) {
-				for (OctNode _tempNode2 : _tempNode.getChildren()) {
-
-					OctRST point = _tempNode2.intersectPoint(start.toRST(this), end.toRST(this),-999999999,999999999);
-					if (point != null) {
-						_tempNodes.put(_tempNode2, point.sub(start.toRST(this)).getNorm());
-						listOfNodes.add(_tempNode2);
-						//selectedNodes.add(_tempNode2);
+		float[] start = { _start.x, _start.y, _start.z };
+		float[] direction = { _direction.x, _direction.y, _direction.z };
+		OctNodeIndex index = this.getIndex();
+		float[] distance = new float[1];
+		int i = castRay(index, start, direction, 0, distance);
+		if (i < 0)
+			return null;
+		float d = distance[0] / length;
+		OctXYZ point = new OctXYZ(_start.x + _direction.x * d, _start.y
+				+ _direction.y * d, _start.z + _direction.z * d);
+		return new OctRayHit(index.getNode(i), distance[0], point);
+	}
+
+	/**
+	 * Casts many rays at once, in parallel. The origins and the directions are
+	 * XYZ coordinates stored as x, y, z triplets, the length of the directions
+	 * does not matter. For each ray, the key of the first node hit (see
+	 * OctMorton.getKey()) and its distance are written in _keys and
+	 * _distances, -1 and infinity if nothing is hit.
+	 */
+	public void castRays(final float[] _origins, final float[] _directions,
+			final long[] _keys, final float[] _distances) {
+		final int count = _origins.length / 3;
+		if (_directions.length < count * 3 || _keys.length < count
+				|| _distances.length < count) {
+			PApplet.println("ERROR in castRays: arrays too small for " + count
+					+ " rays. Nothing done.");
+			return;
+		}
+		final OctNodeIndex index = this.getIndex();
+		OctParallel.run(count, 64, new OctParallel.Task() {
+			public void run(int _from, int _to) {
+				float[] distance = new float[1];
+				for (int i = _from; i < _to; i++) {
+					int hit = castRay(index, _origins, _directions, i, distance);
+					if (hit < 0) {
+						_keys[i] = -1;
+						_distances[i] = Float.POSITIVE_INFINITY;
+					} else {
+						_keys[i] = OctMorton.getKey(index.getNode(hit));
+						_distances[i] = distance[0];
 					}
 				}
 			}
-			listOfNodes2.clear();
-			listOfNodes2.addAll(listOfNodes);
-			listOfNodes.clear();
-		}
-		return _tempNodes;
-	}
-
-	private OctNode getClosestNode(OctXYZ start, OctXYZ direction) {
-		//PApplet.println("getclosestnode");
-		OctNode _tempNode = new OctNode();
-		float closest=999999999;
-		//PApplet.println(start.x +"y" + start.y +"y" +start.z );
-		//PApplet.println(direction.x +"y" + direction.y +"y" +direction.z );
-		HashMap<OctNode,Float> _tempNodes = getRayNodes( start,  direction);
-		//PApplet.println(_tempNodes);
-		for (OctNode candidates : _tempNodes.keySet()) {
-			if (this.nodeList.contains(candidates) && closest > _tempNodes.get(candidates))
-			{
-				closest = _tempNodes.get(candidates);
-				_tempNode = candidates;
+		});
+	}
+
+	/**
+	 * Sends to the visitor the nodes that touch the region. The octree is
+	 * traversed from the top, and only the cells partly inside the region are
+	 * subdivided. Out of bounds nodes are ignored.
+	 */
+	public void queryRegion(OctRegion _region, OctNodeVisitor _visitor) {
+		OctNodeIndex index = this.getIndex();
+		if (index.size() > 0)
+			queryRegion(index, _region, _visitor, 0, 0, 0, index.size(),
+					new float[6]);
+	}
+
+	/**
+	 * Gets the nodes that touch the region.
+	 */
+	public ArrayList<OctNode> queryRegion(OctRegion _region) {
+		final ArrayList<OctNode> t = new ArrayList<OctNode>();
+		queryRegion(_region, new OctNodeVisitor() {
+			public void visit(OctNode n) {
+				t.add(n);
+			}
+		});
+		return t;
+	}
+
+	/**
+	 * Sends to the visitor the nodes that touch the box defined by two
+	 * corners in XYZ coordinates.
+	 */
+	public void queryBox(OctXYZ _corner0, OctXYZ _corner1,
+			OctNodeVisitor _visitor) {
+		queryRegion(OctRegion.box(_corner0, _corner1), _visitor);
+	}
+
+	/**
+	 * Gets the nodes that touch the box defined by two corners in XYZ
+	 * coordinates.
+	 */
+	public ArrayList<OctNode> queryBox(OctXYZ _corner0, OctXYZ _corner1) {
+		return queryRegion(OctRegion.box(_corner0, _corner1));
+	}
+
+	/**
+	 * Sends to the visitor the nodes that touch the sphere.
+	 */
+	public void querySphere(OctXYZ _center, float _radius,
+			OctNodeVisitor _visitor) {
+		queryRegion(OctRegion.sphere(_center, _radius), _visitor);
+	}
+
+	/**
+	 * Gets the nodes that touch the sphere.
+	 */
+	public ArrayList<OctNode> querySphere(OctXYZ _center, float _radius) {
+		return queryRegion(OctRegion.sphere(_center, _radius));
+	}
+
+	private void queryRegion(OctNodeIndex _index, OctRegion _region,
+			OctNodeVisitor _visitor, long _code, int _level, int _from,
+			int _to, float[] _box) {
+		// _box is reused by the children, it is not read after them
+		float[] box = getCellBox(_code, _level, _box);
+		int c = _region.classify(box[0], box[1], box[2], box[3], box[4],
+				box[5]);
+		if (c == OctRegion.OUTSIDE)
+			return;
+		if (c == OctRegion.INSIDE) {
+			for (int i = _from; i < _to; i++) {
+				_visitor.visit(_index.getNode(i));
 			}
+			return;
 		}
-		//PApplet.println("selected"+_tempNode);
-		return  _tempNode;
+		int from = _from;
+		if (_index.getNode(from).level == _level) {
+			_visitor.visit(_index.getNode(from));
+			from++;
+		}
+		int shift = 3 * (_index.getDepth() - _level - 1);
+		for (int k = 0; k < 8 && from < _to; k++) {
+			long code = (_code << 3) | k;
+			int to = _index.getFirst((code + 1) << shift, from, _to);
+			if (to > from)
+				queryRegion(_index, _region, _visitor, code, _level + 1, from,
+						to, _box);
+			from = to;
+		}
+	}
+
+	/**
+	 * Gets the node closest to the point, or null if the octree is empty. The
+	 * distance is measured to the box of the node, 0 if the point is inside.
+	 * Out of bounds nodes are ignored.
+	 */
+	public OctNode getNearestNode(OctXYZ _point) {
+		ArrayList<OctNode> t = getNearestNodes(_point, 1);
+		if (t.isEmpty())
+			return null;
+		return t.get(0);
+	}
+
+	/**
+	 * Gets the k nodes closest to the point, sorted by distance. The cells of
+	 * the octree are visited best first, sorted by their distance to the
+	 * point. The k closest nodes found so far are kept in a bounded queue, and
+	 * the cells farther than the k-th of them are not opened.
+	 */
+	public ArrayList<OctNode> getNearestNodes(OctXYZ _point, int _k) {
+		ArrayList<OctNode> t = new ArrayList<OctNode>();
+		OctNodeIndex index = this.getIndex();
+		if (_k <= 0 || index.size() == 0)
+			return t;
+		float[] box = new float[6];
+		PriorityQueue<NearestEntry> queue = new PriorityQueue<NearestEntry>();
+		// distances of the k closest candidates, the farthest first
+		PriorityQueue<Float> candidates = new PriorityQueue<Float>(_k,
+				Collections.reverseOrder());
+		queue.add(new NearestEntry(getDistance2(_point, 0, 0, box), 0, 0, 0,
+				index.size(), false));
+		while (!queue.isEmpty() && t.size() < _k) {
+			NearestEntry e = queue.poll();
+			if (e.isNode) {
+				t.add(index.getNode(e.from));
+				continue;
+			}
+			int from = e.from;
+			if (index.getNode(from).level == e.level) {
+				if (addCandidate(candidates, _k, e.distance2))
+					queue.add(new NearestEntry(e.distance2, e.code, e.level,
+							from, from + 1, true));
+				from++;
+			}
+			int shift = 3 * (index.getDepth() - e.level - 1);
+			for (int k = 0; k < 8 && from < e.to; k++) {
+				long code = (e.code << 3) | k;
+				int to = index.getFirst((code + 1) << shift, from, e.to);
+				if (to > from) {
+					float d = getDistance2(_point, code, e.level + 1, box);
+					if (candidates.size() < _k || d <= candidates.peek())
+						queue.add(new NearestEntry(d, code, e.level + 1, from,
+								to, false));
+				}
+				from = to;
+			}
+		}
+		return t;
+	}
+
+	// adds the distance of a node to the k closest ones, false if it is
+	// farther than all of them
+	private static boolean addCandidate(PriorityQueue<Float> _candidates,
+			int _k, float _distance2) {
+		if (_candidates.size() == _k) {
+			if (_distance2 > _candidates.peek())
+				return false;
+			_candidates.poll();
+		}
+		_candidates.add(_distance2);
+		return true;
+	}
+
+	/**
+	 * A cell, or a node, waiting in the queue of getNearestNodes().
+	 */
+	private static class NearestEntry implements Comparable<NearestEntry> {
+		float distance2;
+		long code;
+		int level;
+		int from;
+		int to;
+		boolean isNode;
+
+		NearestEntry(float _distance2, long _code, int _level, int _from,
+				int _to, boolean _isNode) {
+			distance2 = _distance2;
+			code = _code;
+			level = _level;
+			from = _from;
+			to = _to;
+			isNode = _isNode;
+		}
+
+		public int compareTo(NearestEntry _e) {
+			if (distance2 != _e.distance2)
+				return distance2 < _e.distance2 ? -1 : 1;
+			// nodes before cells at the same distance
+			if (isNode != _e.isNode)
+				return isNode ? -1 : 1;
+			return 0;
+		}
+	}
+
+	// squared distance from a point to a cell, in XYZ coordinates
+	private float getDistance2(OctXYZ _point, long _code, int _level,
+			float[] _box) {
+		float[] box = getCellBox(_code, _level, _box);
+		float dx = Math.max(Math.max(box[0] - _point.x, 0), _point.x - box[3]);
+		float dy = Math.max(Math.max(box[1] - _point.y, 0), _point.y - box[4]);
+		float dz = Math.max(Math.max(box[2] - _point.z, 0), _point.z - box[5]);
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	// min and max XYZ coordinates of a cell, written into _box and returned
+	private float[] getCellBox(long _code, int _level, float[] _box) {
+		return getCellBox(OctMorton.decodeR(_code), OctMorton.decodeS(_code),
+				OctMorton.decodeT(_code), _level, _box);
+	}
+
+	private float[] getCellBox(int _r, int _s, int _t, int _level,
+			float[] _box) {
+		float size = 1f / (1 << _level);
+		float x0 = origin.x + _r * size * dimension.x;
+		float y0 = origin.y + _s * size * dimension.y;
+		float z0 = origin.z + _t * size * dimension.z;
+		float x1 = x0 + size * dimension.x;
+		float y1 = y0 + size * dimension.y;
+		float z1 = z0 + size * dimension.z;
+		_box[0] = Math.min(x0, x1);
+		_box[1] = Math.min(y0, y1);
+		_box[2] = Math.min(z0, z1);
+		_box[3] = Math.max(x0, x1);
+		_box[4] = Math.max(y0, y1);
+		_box[5] = Math.max(z0, z1);
+		return _box;
+	}
+
+	/**
+	 * Marks the data cached from the nodes (like the sorted index used by the
+	 * ray queries) as outdated. The methods of the octree do it themselves,
+	 * it is only needed after changing 'nodeList' directly. The octrees made
+	 * with OctOctree(PApplet, OctOctree) share the nodes of the source: after
+	 * changing the nodes of one of them, call invalidate() on the others.
+	 */
+	public void invalidate() {
+		modCount++;
+	}
+
+	/**
+	 * Gets the sorted index of the nodes, built again only if the nodes have
+	 * changed. Don't keep it after changing the nodes.
+	 */
+	public OctNodeIndex getIndex() {
+		checkCaches();
+		if (index == null)
+			index = new OctNodeIndex(nodeList);
+		return index;
+	}
+
+	// drops the caches if the nodes, the origin or the dimensions have changed
+	private void checkCaches() {
+		if (cacheNodeList != nodeList || cacheSize != nodeList.size()
+				|| cacheModCount != modCount) {
+			index = null;
+			boundaryQuads = null;
+			shapes = null;
+			cacheNodeList = nodeList;
+			cacheSize = nodeList.size();
+			cacheModCount = modCount;
+		}
+		if (cacheBounds[0] != origin.x || cacheBounds[1] != origin.y
+				|| cacheBounds[2] != origin.z || cacheBounds[3] != dimension.x
+				|| cacheBounds[4] != dimension.y
+				|| cacheBounds[5] != dimension.z) {
+			boundaryQuads = null;
+			shapes = null;
+			cacheBounds[0] = origin.x;
+			cacheBounds[1] = origin.y;
+			cacheBounds[2] = origin.z;
+			cacheBounds[3] = dimension.x;
+			cacheBounds[4] = dimension.y;
+			cacheBounds[5] = dimension.z;
+		}
+	}
+
+	/**
+	 * Casts the ray _i of the arrays of XYZ coordinates. Returns the position
+	 * of the node hit in the index, or -1. Does not allocate anything.
+	 */
+	private int castRay(OctNodeIndex _index, float[] _origins,
+			float[] _directions, int _i, float[] _distance) {
+		float dx = _directions[_i * 3];
+		float dy = _directions[_i * 3 + 1];
+		float dz = _directions[_i * 3 + 2];
+		float length = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+		if (_index.size() == 0 || length == 0)
+			return -1;
+		// in RST coordinates the distances along the ray are unchanged
+		float sr = (_origins[_i * 3] - origin.x) / dimension.x;
+		float ss = (_origins[_i * 3 + 1] - origin.y) / dimension.y;
+		float st = (_origins[_i * 3 + 2] - origin.z) / dimension.z;
+		float ir = dimension.x * length / dx;
+		float is = dimension.y * length / dy;
+		float it = dimension.z * length / dz;
+		float t = OctNode.intersectBox(0, 0, 0, 1, 1, 1, sr, ss, st, ir, is,
+				it, 0, Float.POSITIVE_INFINITY);
+		if (Float.isNaN(t))
+			return -1;
+		_distance[0] = Math.max(t, 0);
+		// children visited in the order the ray crosses them
+		int mask = (ir < 0 ? 1 : 0) | (is < 0 ? 2 : 0) | (it < 0 ? 4 : 0);
+		return castRay(_index, 0, 0, 0, _index.size(), sr, ss, st, ir, is, it,
+				mask, _distance);
+	}
+
+	private static int castRay(OctNodeIndex _index, long _code, int _level,
+			int _from, int _to, float _sr, float _ss, float _st, float _ir,
+			float _is, float _it, int _mask, float[] _distance) {
+		if (_index.getNode(_from).level == _level)
+			return _from;
+		int shift = 3 * (_index.getDepth() - _level - 1);
+		float size = 1f / (1 << (_level + 1));
+		for (int k = 0; k < 8; k++) {
+			long code = (_code << 3) | (k ^ _mask);
+			int from = _index.getFirst(code << shift, _from, _to);
+			int to = _index.getFirst((code + 1) << shift, from, _to);
+			if (from == to)
+				continue;
+			float r = OctMorton.decodeR(code) * size;
+			float s = OctMorton.decodeS(code) * size;
+			float t = OctMorton.decodeT(code) * size;
+			float d = OctNode.intersectBox(r, s, t, r + size, s + size, t
+					+ size, _sr, _ss, _st, _ir, _is, _it, 0,
+					Float.POSITIVE_INFINITY);
+			if (Float.isNaN(d))
+				continue;
+			_distance[0] = Math.max(d, 0);
+			int i = castRay(_index, code, _level + 1, from, to, _sr, _ss, _st,
+					_ir, _is, _it, _mask, _distance);
+			if (i >= 0)
+				return i;
+		}
+		return -1;
 	}
 
 	// *************************************************************************************
@@ -470,17 +830,254 @@ public class OctOctree implements java.io.Serializable {
 	 * depth level to the octree to be set correctly.
 	 */
 	public void boolSub(OctNode subNode) {
-		ArrayList<OctNode> listAdd = new ArrayList<OctNode>();
-		ArrayList<OctNode> listDel = new ArrayList<OctNode>();
+		modCount++;
 		if (nodeList.contains(subNode)) {
 			nodeList.remove(subNode);
 			return;
 		}
-		for (OctNode temp : subNode.getAllChildren(this.maxD - subNode.level)) {
+		for (OctNode temp : this.getContainedNodes(subNode)) {
+			nodeList.remove(temp);
+		}
+		this.splitParents(subNode);
+	}
+
+	/**
+	 * Boolean subtracts a list of nodes from the octree. The bigger nodes are
+	 * split first, then the nodes inside the subtracted nodes are found with
+	 * one sorted index of the octree.
+	 */
+	public void boolSub(ArrayList<OctNode> _tempNodeList) {
+		modCount++;
+		for (OctNode subNode : _tempNodeList) {
+			if (!nodeList.contains(subNode))
+				this.splitParents(subNode);
+		}
+		OctNodeIndex index = new OctNodeIndex(nodeList);
+		ArrayList<OctNode> listDel = new ArrayList<OctNode>();
+		for (OctNode subNode : _tempNodeList) {
+			listDel.add(subNode);
+			if (subNode.isCodeWB(this))
+				listDel.addAll(index.getDescendants(subNode));
+			else
+				listDel.addAll(this.getContainedNodes(subNode));
+		}
+		for (OctNode temp : listDel) {
+			nodeList.remove(temp);
+		}
+	}
+
+	/**
+	 * Boolean adds one node from the octree. Requires the min and max depth
+	 * level to the octree to be set correctly.
+	 */
+	public void boolAdd(OctNode addNode) {
+		modCount++;
+		ArrayList<OctNode> listAdd = new ArrayList<OctNode>();
+		ArrayList<OctNode> listDel = new ArrayList<OctNode>();
+		if (!nodeList.contains(addNode)) {
+			listAdd.add(addNode);
+		}
+		listDel.addAll(this.getContainedNodes(addNode));
+		for (OctNode temp : addNode.getAllParents(addNode.level - this.minD)) {
 			if (nodeList.contains(temp)) {
-				listDel.add(temp);
+				listDel.add(addNode);
+			}
+		}
+		nodeList.addAll(listAdd);
+		for (OctNode temp : listDel) {
+			nodeList.remove(temp);
+		}
+	}
+
+	/**
+	 * Boolean adds a list of nodes to the octree. The nodes already covered by
+	 * a bigger node and the nodes to remove are found with one sorted index of
+	 * the octree.
+	 */
+	public void boolAdd(ArrayList<OctNode> _tempNodeList) {
+		modCount++;
+		HashSet<OctNode> tempSet = new HashSet<OctNode>(nodeList);
+		tempSet.addAll(_tempNodeList);
+		OctNodeIndex index = new OctNodeIndex(tempSet);
+		boolean[] covered = index.isCovered(_tempNodeList);
+		for (int i = 0; i < covered.length; i++) {
+			OctNode addNode = _tempNodeList.get(i);
+			if (!index.contains(addNode)) {
+				// out of bounds, not indexed
+				this.boolAdd(addNode);
+			} else if (!covered[i]) {
+				nodeList.add(addNode);
+				for (OctNode temp : index.getDescendants(addNode)) {
+					nodeList.remove(temp);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Boolean union with another octree with the same bounds. The nodes of
+	 * this octree are replaced by the result, out of bounds nodes are kept. The
+	 * two octrees are traversed together, only where both have nodes.
+	 */
+	public void union(OctOctree _octree) {
+		boolMerge(BOOL_UNION, _octree, "union");
+	}
+
+	/**
+	 * Boolean intersection with another octree with the same bounds. The nodes
+	 * of this octree are replaced by the result, out of bounds nodes are kept.
+	 */
+	public void intersect(OctOctree _octree) {
+		boolMerge(BOOL_INTERSECT, _octree, "intersect");
+	}
+
+	/**
+	 * Boolean subtraction of another octree with the same bounds. The nodes of
+	 * this octree are replaced by the result, out of bounds nodes are kept.
+	 */
+	public void subtract(OctOctree _octree) {
+		boolMerge(BOOL_SUBTRACT, _octree, "subtract");
+	}
+
+	/**
+	 * Boolean exclusive or with another octree with the same bounds. The nodes
+	 * of this octree are replaced by the result, out of bounds nodes are kept.
+	 */
+	public void xor(OctOctree _octree) {
+		boolMerge(BOOL_XOR, _octree, "xor");
+	}
+
+	private static final int BOOL_UNION = 0;
+	private static final int BOOL_INTERSECT = 1;
+	private static final int BOOL_SUBTRACT = 2;
+	private static final int BOOL_XOR = 3;
+
+	private void boolMerge(int _op, OctOctree _octree, String _name) {
+		modCount++;
+		if (!this.origin.equals(_octree.origin)
+				|| !this.dimension.equals(_octree.dimension)) {
+			PApplet.println("ERROR in " + _name
+					+ ": the octrees don't have the same bounds. Octree not changed.");
+			return;
+		}
+		// both indexes need the same depth to compare their cells
+		OctNodeIndex a = new OctNodeIndex(nodeList);
+		OctNodeIndex b = new OctNodeIndex(_octree.nodeList, a.getDepth());
+		if (a.getDepth() < b.getDepth())
+			a = new OctNodeIndex(nodeList, b.getDepth());
+		ArrayList<OctNode> result = new ArrayList<OctNode>();
+		boolMerge(_op, a, b, 0, 0, false, 0, a.size(), false, 0, b.size(),
+				result);
+		for (OctNode t : nodeList) {
+			if (!t.isCodeWB(this) || t.level > OctNodeIndex.MAX_DEPTH)
+				result.add(t);
+		}
+		nodeList.clear();
+		nodeList.addAll(result);
+	}
+
+	/**
+	 * One cell of the merge. The nodes of each octree inside the cell are a
+	 * range of its index, or the whole cell if a bigger node covers it.
+	 */
+	private void boolMerge(int _op, OctNodeIndex _a, OctNodeIndex _b,
+			long _code, int _level, boolean _fullA, int _a0, int _a1,
+			boolean _fullB, int _b0, int _b1, ArrayList<OctNode> _result) {
+		boolean fullA = _fullA || (_a0 < _a1 && _a.getNode(_a0).level == _level);
+		boolean fullB = _fullB || (_b0 < _b1 && _b.getNode(_b0).level == _level);
+		boolean emptyA = !fullA && _a0 == _a1;
+		boolean emptyB = !fullB && _b0 == _b1;
+		switch (_op) {
+		case BOOL_UNION:
+			if (fullA || fullB) {
+				_result.add(OctMorton.getNode(_code, _level));
+				return;
+			}
+			if (emptyA) {
+				addRange(_b, _b0, _b1, _result);
+				return;
+			}
+			if (emptyB) {
+				addRange(_a, _a0, _a1, _result);
+				return;
+			}
+			break;
+		case BOOL_INTERSECT:
+			if (emptyA || emptyB)
+				return;
+			if (fullA && fullB) {
+				_result.add(OctMorton.getNode(_code, _level));
+				return;
+			}
+			if (fullA) {
+				addRange(_b, _b0, _b1, _result);
+				return;
+			}
+			if (fullB) {
+				addRange(_a, _a0, _a1, _result);
+				return;
+			}
+			break;
+		case BOOL_SUBTRACT:
+			if (emptyA || fullB)
+				return;
+			if (emptyB) {
+				if (fullA)
+					_result.add(OctMorton.getNode(_code, _level));
+				else
+					addRange(_a, _a0, _a1, _result);
+				return;
 			}
+			break;
+		case BOOL_XOR:
+			if (fullA && fullB)
+				return;
+			if (emptyA) {
+				if (fullB)
+					_result.add(OctMorton.getNode(_code, _level));
+				else
+					addRange(_b, _b0, _b1, _result);
+				return;
+			}
+			if (emptyB) {
+				if (fullA)
+					_result.add(OctMorton.getNode(_code, _level));
+				else
+					addRange(_a, _a0, _a1, _result);
+				return;
+			}
+			break;
+		}
+		// both octrees have something in the cell, at least one is partial
+		int shift = 3 * (_a.getDepth() - _level - 1);
+		int a0 = _a0;
+		int b0 = _b0;
+		for (int i = 0; i < 8; i++) {
+			long code = (_code << 3) | i;
+			long next = (code + 1) << shift;
+			int a1 = fullA ? a0 : _a.getFirst(next, a0, _a1);
+			int b1 = fullB ? b0 : _b.getFirst(next, b0, _b1);
+			boolMerge(_op, _a, _b, code, _level + 1, fullA, a0, a1, fullB,
+					b0, b1, _result);
+			a0 = a1;
+			b0 = b1;
+		}
+	}
+
+	private void addRange(OctNodeIndex _index, int _from, int _to,
+			ArrayList<OctNode> _result) {
+		for (int i = _from; i < _to; i++) {
+			_result.add(_index.getNode(i));
 		}
+	}
+
+	/**
+	 * Replaces the nodes containing the node by their children, down to the
+	 * node itself (not included).
+	 */
+	private void splitParents(OctNode subNode) {
+		ArrayList<OctNode> listAdd = new ArrayList<OctNode>();
+		ArrayList<OctNode> listDel = new ArrayList<OctNode>();
 		for (OctNode parent : subNode.getAllParents(subNode.level - this.minD)) {
 			if (nodeList.contains(parent)) {
 				listDel.add(parent);
@@ -497,27 +1094,31 @@ public class OctOctree implements java.io.Serializable {
 	}
 
 	/**
-	 * Boolean adds one node from the octree. Requires the min and max depth
-	 * level to the octree to be set correctly.
+	 * Gets the nodes of the octree contained in the node (not included), down
+	 * to the max depth. The possible children are enumerated when there are
+	 * fewer of them than nodes in the octree, else the octree is scanned.
 	 */
-	public void boolAdd(OctNode addNode) {
-		ArrayList<OctNode> listAdd = new ArrayList<OctNode>();
-		ArrayList<OctNode> listDel = new ArrayList<OctNode>();
-		if (!nodeList.contains(addNode)) {
-			listAdd.add(addNode);
-		}
-		for (OctNode temp : addNode.getAllChildren(this.maxD - addNode.level)) {
-			if (nodeList.contains(temp)) {
-				listDel.add(temp);
+	private ArrayList<OctNode> getContainedNodes(OctNode _tempNode) {
+		ArrayList<OctNode> t = new ArrayList<OctNode>();
+		int d = this.maxD - _tempNode.level;
+		if (d <= 0)
+			return t;
+		if (d < 20 && ((1L << (3 * d + 3)) - 8) / 7 < nodeList.size()) {
+			for (OctNode temp : _tempNode.getAllChildren(d)) {
+				if (nodeList.contains(temp))
+					t.add(temp);
 			}
-		}
-		for (OctNode temp : addNode.getAllParents(addNode.level - this.minD)) {
-			if (nodeList.contains(temp)) {
-				listDel.add(addNode);
+		} else {
+			for (OctNode temp : nodeList) {
+				int l = temp.level - _tempNode.level;
+				if (l > 0 && temp.level <= this.maxD
+						&& temp.codeR >> l == _tempNode.codeR
+						&& temp.codeS >> l == _tempNode.codeS
+						&& temp.codeT >> l == _tempNode.codeT)
+					t.add(temp);
 			}
 		}
-		nodeList.addAll(listAdd);
-		nodeList.removeAll(listDel);
+		return t;
 	}
 
 	// *************************************************************************************
@@ -570,6 +1171,7 @@ public class OctOctree implements java.io.Serializable {
 	 * loop, use nodeSubdivide(ArrayList) or nodeSubdivide(HashSet).
 	 */
 	public void subdivideNode(OctNode _tempNode) {
+		modCount++;
 		nodeList.remove(_tempNode);
 		nodeList.addAll(_tempNode.getChildren(1));
 	}
@@ -578,6 +1180,7 @@ public class OctOctree implements java.io.Serializable {
 	 * Subdivides a list of nodes by replacing it by their 8 children.
 	 */
 	public void subdivideNode(ArrayList<OctNode> _tempList) {
+		modCount++;
 		HashSet<OctNode> _tempNodeList = new HashSet<OctNode>(_tempList);
 		HashSet<OctNode> listAdd = new HashSet<OctNode>();
 		for (OctNode temp : _tempNodeList) {
@@ -593,6 +1196,7 @@ public class OctOctree implements java.io.Serializable {
 	 * Subdivides a list of nodes by replacing it by their 8 children.
 	 */
 	public void subdivideNode(HashSet<OctNode> _tempNodeList) {
+		modCount++;
 		HashSet<OctNode> listAdd = new HashSet<OctNode>();
 		for (OctNode temp : _tempNodeList) {
 			if (nodeList.contains(temp)) {
@@ -608,6 +1212,7 @@ public class OctOctree implements java.io.Serializable {
 	 * parent, but not smaller nodes! Can create nested nodes!
 	 */
 	public void mergeNode(OctNode _tempNode) {
+		modCount++;
 		nodeList.remove(_tempNode);
 		nodeList.removeAll(_tempNode.getSiblings());
 		nodeList.add(_tempNode.getParent(1));
@@ -618,6 +1223,7 @@ public class OctOctree implements java.io.Serializable {
 	 * also in the parent, but not smaller nodes! Can create nested nodes!
 	 */
 	public void mergeNode(ArrayList<OctNode> _tempList) {
+		modCount++;
 		HashSet<OctNode> _toAdd = new HashSet<OctNode>();
 		HashSet<OctNode> _toRemove = new HashSet<OctNode>();
 		for (OctNode temp : _tempList) {
@@ -636,6 +1242,7 @@ public class OctOctree implements java.io.Serializable {
 	 * also in the parent, but not smaller nodes! Can create nested nodes!
 	 */
 	public void mergeNode(HashSet<OctNode> _tempList) {
+		modCount++;
 		HashSet<OctNode> _toAdd = new HashSet<OctNode>();
 		HashSet<OctNode> _toRemove = new HashSet<OctNode>();
 		for (OctNode temp : _tempList) {
@@ -845,6 +1452,185 @@ public class OctOctree implements java.io.Serializable {
 		if (_equal) this.addNode(toAdd);
 	}
 
+	private static final int ADAPTIVE_MAX_START = 7;
+
+	/**
+	 * Generates all nodes that are below/crossing/above the threshold by
+	 * looking at the 8 corners, like algGenerateByCorners, but only subdivides
+	 * a crossing node if the function deviates from the trilinear
+	 * interpolation of its corners by more than the tolerance. The deviation
+	 * is measured at the center and at the 6 face centers of the node. Flat
+	 * parts of the surface stay coarse, curved parts are refined down to the
+	 * end depth. Requires the min and max depth level to the octree to be set
+	 * correctly. Use algConstrain() afterwards if the polygonization needs a
+	 * balanced tree. The start depth is limited to 7, i.e. 2097152 seed nodes,
+	 * or to the min depth if that is larger.
+	 *
+	 * @param _tolerance
+	 *            maximum deviation, in function units, for a node to be kept
+	 */
+	public void algGenerateAdaptive(OctFunction _f, float _threshold,
+			int _start, int _end, float _tolerance, boolean _below,
+			boolean _equal, boolean _above) {
+		int start = _start;
+		int end = _end;
+		if (start > end) {
+			PApplet.println("ERROR in algGenerateAdaptive: start depth " + start
+					+ " larger than end depth " + end
+					+ ". Values have been inverted.");
+			int temp = end;
+			end = start;
+			start = temp;
+		}
+		if (start > maxD) {
+			PApplet.println("ERROR in algGenerateAdaptive: start depth " + start
+					+ " larger than max depth " + maxD
+					+ ". Max depth used instead.");
+			start = maxD;
+		}
+		if (start < minD) {
+			PApplet.println("ERROR in algGenerateAdaptive: start depth " + start
+					+ " smaller than min depth " + minD
+					+ ". Min depth used instead.");
+			start = minD;
+		}
+		if (end > maxD) {
+			PApplet.println("ERROR in algGenerateAdaptive: end depth " + end
+					+ " larger than max depth " + maxD
+					+ ". Max depth used instead.");
+			end = maxD;
+		}
+		if (end < minD) {
+			PApplet.println("ERROR in algGenerateAdaptive: end depth " + end
+					+ " smaller than min depth " + minD
+					+ ". Min depth used instead.");
+			end = minD;
+		}
+		// the codes of the nodes are shorts
+		if (end > 15) {
+			PApplet.println("ERROR in algGenerateAdaptive: end depth " + end
+					+ " too large. Depth 15 used instead.");
+			end = 15;
+		}
+		if (start > 15) {
+			PApplet.println("ERROR in algGenerateAdaptive: start depth " + start
+					+ " too large. Depth 15 used instead.");
+			start = 15;
+		}
+		start = Math.min(start, end);
+		// the seed holds 8^start nodes
+		int maxStart = Math.max(ADAPTIVE_MAX_START, minD);
+		if (start > maxStart) {
+			PApplet.println("ERROR in algGenerateAdaptive: start depth " + start
+					+ " seeds too many nodes. Depth " + maxStart
+					+ " used instead.");
+			start = maxStart;
+		}
+
+		// samples are shared between neighbors and between parent and
+		// children, they are stored by their position on the finest lattice
+		HashMap<Long, Float> samples = new HashMap<Long, Float>();
+		float[] valueAt = new float[8];
+
+		ArrayList<OctNode> toCheck = new ArrayList<OctNode>();
+		for (int m = 1 << start; --m >= 0;) {
+			for (int n = 1 << start; --n >= 0;) {
+				for (int p = 1 << start; --p >= 0;) {
+					toCheck.add(new OctNode(m, n, p, start));
+				}
+			}
+		}
+
+		int kept = 0;
+		while (toCheck.size() > 0) {
+			ArrayList<OctNode> toSubdivide = new ArrayList<OctNode>();
+			for (OctNode tempNode : toCheck) {
+				int shift = end - tempNode.level;
+				int x0 = tempNode.codeR << shift;
+				int y0 = tempNode.codeS << shift;
+				int z0 = tempNode.codeT << shift;
+				int size = 1 << shift;
+				int data = 0;
+				for (OCT_VERTEX v : OCT_VERTEX.values()) {
+					valueAt[v.ordinal()] = sampleLattice(_f, samples, x0
+							+ (v.r + 1) / 2 * size, y0 + (v.s + 1) / 2 * size,
+							z0 + (v.t + 1) / 2 * size, end);
+					if (valueAt[v.ordinal()] > _threshold)
+						data++;
+				}
+				if (_below && data == 0) {
+					this.addNode(tempNode);
+				}
+				if (_above && data == 8) {
+					this.addNode(tempNode);
+				}
+				if (data > 0 && data < 8) {
+					if (shift > 0
+							&& getTrilinearError(_f, samples, valueAt, x0, y0,
+									z0, size, end) > _tolerance) {
+						toSubdivide.add(tempNode);
+					} else if (_equal) {
+						this.addNode(tempNode);
+						kept++;
+					}
+				}
+			}
+			toCheck = new ArrayList<OctNode>();
+			for (OctNode tempNode : toSubdivide) {
+				toCheck.addAll(tempNode.getChildren());
+			}
+		}
+		PApplet.println("RESULT of algGenerateAdaptive: " + kept
+				+ " crossing nodes, " + samples.size() + " samples.");
+	}
+
+	/**
+	 * Largest difference between the function and the trilinear interpolation
+	 * of the 8 corners, at the center and at the face centers of the node.
+	 */
+	private float getTrilinearError(OctFunction _f,
+			HashMap<Long, Float> _samples, float[] _valueAt, int _x0, int _y0,
+			int _z0, int _size, int _depth) {
+		int h = _size / 2;
+		float error = 0;
+		float center = 0;
+		for (int i = 0; i < 8; i++) {
+			center += _valueAt[i];
+		}
+		center /= 8f;
+		error = PApplet.max(error, PApplet.abs(sampleLattice(_f, _samples, _x0
+				+ h, _y0 + h, _z0 + h, _depth)
+				- center));
+		for (OCT_FACE f : OCT_FACE.values()) {
+			float interpolated = (_valueAt[f.getV0().ordinal()]
+					+ _valueAt[f.getV1().ordinal()]
+					+ _valueAt[f.getV2().ordinal()] + _valueAt[f.getV3()
+					.ordinal()]) / 4f;
+			float sample = sampleLattice(_f, _samples, _x0 + h + f.r * h, _y0
+					+ h + f.s * h, _z0 + h + f.t * h, _depth);
+			error = PApplet.max(error, PApplet.abs(sample - interpolated));
+		}
+		return error;
+	}
+
+	/**
+	 * Computes the function at a point of the lattice of the specified depth,
+	 * or reads it from the cache if it has already been computed.
+	 */
+	private float sampleLattice(OctFunction _f, HashMap<Long, Float> _samples,
+			int _x, int _y, int _z, int _depth) {
+		long key = ((long) _x << 42) | ((long) _y << 21) | (long) _z;
+		Float value = _samples.get(key);
+		if (value == null) {
+			float grid = 1f / (1 << _depth);
+			value = _f.compute(origin.x + _x * grid * dimension.x, origin.y
+					+ _y * grid * dimension.y, origin.z + _z * grid
+					* dimension.z);
+			_samples.put(key, value);
+		}
+		return value;
+	}
+
 	// TODO simplify except if crossing a certain function, so that the surface is always clean
 
 	/**
@@ -869,33 +1655,72 @@ public class OctOctree implements java.io.Serializable {
 					+ ". Min depth used instead.");
 			depth = minD;
 		}
-		boolean needToIterate = false;
-		PApplet.println("ITERATING algSimplify:\t" + nodeList.size() + " nodes");
+		// sorted Morton codes of the nodes, level by level
+		int top = 0;
+		for (OctNode tempNode : nodeList) {
+			if (top < tempNode.level)
+				top = tempNode.level;
+		}
+		long[][] codes = new long[top + 1][];
+		int[] count = new int[top + 1];
+		for (OctNode tempNode : nodeList) {
+			count[tempNode.level]++;
+		}
+		for (int l = 0; l <= top; l++) {
+			codes[l] = new long[count[l]];
+			count[l] = 0;
+		}
+		for (OctNode tempNode : nodeList) {
+			codes[tempNode.level][count[tempNode.level]++] = OctMorton
+					.getCode(tempNode);
+		}
+
+		// bottom-up, the 8 siblings of a complete group have consecutive
+		// codes. The parents are merged into the level above before it is
+		// processed, so that one pass is enough.
 		HashSet<OctNode> tempToAdd = new HashSet<OctNode>();
 		HashSet<OctNode> tempToDelete = new HashSet<OctNode>();
-		for (OctNode tempNode : nodeList) {
-			int count = 0;
-			if (tempNode.getLevel() > depth) {
-				for (OctNode tempSibling : tempNode.getSiblings()) {
-					if (nodeList.contains(tempSibling)) {
-						count++;
+		for (int l = top; l > depth; l--) {
+			long[] levelCodes = codes[l];
+			Arrays.sort(levelCodes);
+			long[] parents = new long[levelCodes.length / 8];
+			int parentCount = 0;
+			int i = 0;
+			while (i + 7 < levelCodes.length) {
+				if (levelCodes[i] >>> 3 == levelCodes[i + 7] >>> 3) {
+					for (int j = i; j < i + 8; j++) {
+						OctNode tempChild = OctMorton.getNode(levelCodes[j], l);
+						if (!tempToAdd.remove(tempChild))
+							tempToDelete.add(tempChild);
 					}
+					OctNode tempParent = OctMorton.getNode(levelCodes[i], l)
+							.getParent();
+					parents[parentCount++] = OctMorton.getCode(tempParent);
+					if (!nodeList.contains(tempParent))
+						tempToAdd.add(tempParent);
+					i += 8;
+				} else {
+					i++;
 				}
-				if (count == 7) {
-					OctNode tempParentNode = tempNode.getParent();
-					tempToAdd.add(tempParentNode);
-					tempToDelete.addAll(tempParentNode.getChildren(1));
-					needToIterate = true;
+			}
+			if (parentCount > 0) {
+				long[] merged = new long[codes[l - 1].length + parentCount];
+				System.arraycopy(codes[l - 1], 0, merged, 0, codes[l - 1].length);
+				System.arraycopy(parents, 0, merged, codes[l - 1].length,
+						parentCount);
+				Arrays.sort(merged);
+				int unique = 0;
+				for (int j = 0; j < merged.length; j++) {
+					if (j == 0 || merged[j] != merged[j - 1])
+						merged[unique++] = merged[j];
 				}
+				codes[l - 1] = Arrays.copyOf(merged, unique);
 			}
 		}
 		this.deleteNode(tempToDelete);
 		this.addNode(tempToAdd);
-		if (needToIterate) {
-			PApplet.println("ITERATING algSimplify:\t" + nodeList.size()
-			+ " nodes");
-			algSimplify(depth);
-		}
+		PApplet.println("RESULT of algSimplify:\t" + nodeList.size()
+				+ " nodes");
 	}
 
 	/**
@@ -908,6 +1733,7 @@ public class OctOctree implements java.io.Serializable {
 	 */
 
 	public void algConstrain(int _constraint) {
+		modCount++;
 		int constraint = _constraint;
 		if (constraint < 0) {
 			PApplet.println("ERROR in algConstraint: Constraint cannot be negative, 0 used instead.");
@@ -917,40 +1743,40 @@ public class OctOctree implements java.io.Serializable {
 			PApplet.println("ERROR in algConstraint: Constraint too large, maxD - minD used instead.");
 			constraint = maxD - minD;
 		}
-		boolean needToIterate = false;
-		PApplet.println("ITERATING algConstrain:\t" + nodeList.size()
-		+ " nodes");
-		HashSet<OctNode> tempToAdd = new HashSet<OctNode>();
-		HashSet<OctNode> tempToRemove = new HashSet<OctNode>();
 		ArrayList<OCT_ENUM> enumlist = new ArrayList<OCT_ENUM>();
 		enumlist.addAll(OCT_FACE.getAll());
 		enumlist.addAll(OCT_EDGE.getAll());
-		for (OctNode tempNode : nodeList) {
+		// worklist: a node is only checked again if it or one of its bigger
+		// neighbors has been subdivided
+		ArrayDeque<OctNode> worklist = new ArrayDeque<OctNode>(nodeList);
+		int subdivided = 0;
+		while (!worklist.isEmpty()) {
+			OctNode tempNode = worklist.poll();
+			if (!nodeList.contains(tempNode))
+				continue;
+			boolean changed = false;
 			for (OCT_ENUM e : enumlist) {
-				ArrayList<OctNode> tempList = tempNode.getAllBiggerNbrs(
-						tempNode.level - this.minD, e);
-				tempList = this.filterNode(tempList);
-				if (tempList.size() > 0) {
-					for (OctNode tempNeighborNode : tempList) {
-						if (tempNode.getLevel() - tempNeighborNode.getLevel() > constraint
-								&& tempToRemove.contains(tempNeighborNode) == false) {
-							tempToAdd.addAll(tempNeighborNode.getChildren());
-							tempToRemove.add(tempNeighborNode);
-							needToIterate = true;
+				OctNode tempNbrNode = tempNode.getNbr(e);
+				for (int i = constraint + 1; i <= tempNode.level - this.minD; i++) {
+					OctNode tempBiggerNode = tempNbrNode.getParent(i);
+					if (nodeList.contains(tempBiggerNode)
+							&& !tempBiggerNode.isParentOf(tempNode)) {
+						nodeList.remove(tempBiggerNode);
+						for (OctNode tempChild : tempBiggerNode.getChildren()) {
+							nodeList.add(tempChild);
+							worklist.add(tempChild);
 						}
+						subdivided++;
+						changed = true;
 					}
 				}
 			}
+			// the children of a subdivided neighbor might still be too big
+			if (changed)
+				worklist.add(tempNode);
 		}
-		nodeList.removeAll(tempToRemove);
-		for (OctNode tempNode : tempToAdd) {
-			nodeList.add(tempNode);
-		}
-		if (needToIterate) {
-			PApplet.println("ITERATING algConstrain:\t" + nodeList.size()
-			+ " nodes");
-			algConstrain(constraint);
-		}
+		PApplet.println("RESULT of algConstrain:\t" + subdivided
+				+ " nodes subdivided, " + nodeList.size() + " nodes");
 	}
 
 	/**
@@ -958,16 +1784,23 @@ public class OctOctree implements java.io.Serializable {
 	 * depth level to the octree to be set correctly.
 	 */
 	public void algCleanNested() {
-		Iterator<OctNode> itr = nodeList.iterator();
-		while (itr.hasNext()) {
-			OctNode t = itr.next();
-			boolean delete = false;
+		modCount++;
+		// one sweep over the sorted nodes
+		OctNodeIndex index = new OctNodeIndex(nodeList);
+		ArrayList<OctNode> listDel = index.getNested(this.minD);
+		// out of bounds nodes are not indexed
+		for (OctNode t : nodeList) {
+			if (t.isCodeWB(this) && t.level <= OctNodeIndex.MAX_DEPTH)
+				continue;
 			for (OctNode p : t.getAllParents(t.level - this.minD)) {
-				if (nodeList.contains(p))
-					delete = true;
+				if (nodeList.contains(p)) {
+					listDel.add(t);
+					break;
+				}
 			}
-			if (delete)
-				itr.remove();
+		}
+		for (OctNode t : listDel) {
+			nodeList.remove(t);
 		}
 	}
 
@@ -976,6 +1809,7 @@ public class OctOctree implements java.io.Serializable {
 	 * min and max depth level to the octree to be set correctly.
 	 */
 	public void algCleanOutOfBounds() {
+		modCount++;
 		Iterator<OctNode> itr = nodeList.iterator();
 		while (itr.hasNext()) {
 			OctNode t = itr.next();
@@ -989,6 +1823,7 @@ public class OctOctree implements java.io.Serializable {
 	 * min and max depth level to the octree to be set correctly.
 	 */
 	public void algCleanWrongLevels() {
+		modCount++;
 		Iterator<OctNode> itr = nodeList.iterator();
 		while (itr.hasNext()) {
 			OctNode t = itr.next();
@@ -1002,6 +1837,10 @@ public class OctOctree implements java.io.Serializable {
 	// *************************************************************************************
 
 	public void drawAsCenters() {
+		if (retained) {
+			drawRetained(DRAW_CENTERS);
+			return;
+		}
 		p5.beginShape(PConstants.POINTS);
 		for (OctNode tempNode : nodeList) {
 			PVector center = tempNode.getCenter().toXYZ(this).toPVector();
@@ -1011,6 +1850,10 @@ public class OctOctree implements java.io.Serializable {
 	}
 
 	public void drawAsVertices() {
+		if (retained) {
+			drawRetained(DRAW_VERTICES);
+			return;
+		}
 		p5.beginShape(PConstants.POINTS);
 		for (OctNode tempNode : nodeList) {
 			for (OctRST t : tempNode.getVertices()) {
@@ -1021,6 +1864,10 @@ public class OctOctree implements java.io.Serializable {
 	}
 
 	public void drawAsEdges() {
+		if (retained) {
+			drawRetained(DRAW_EDGES);
+			return;
+		}
 		for (OctNode tempNode : nodeList) {
 			p5.beginShape(PConstants.LINES);
 			for (OCT_EDGE e : OCT_EDGE.values()) {
@@ -1033,6 +1880,11 @@ public class OctOctree implements java.io.Serializable {
 	}
 
 	public void drawAsFaces() {
+		if (retained) {
+			drawRetained(DRAW_FACES);
+			drawSelectedFaces();
+			return;
+		}
 		for (OctNode tempNode : nodeList) {
 			p5.beginShape(PConstants.QUADS);
 			for (OCT_FACE f : OCT_FACE.values()) {
@@ -1042,6 +1894,90 @@ public class OctOctree implements java.io.Serializable {
 			}
 			p5.endShape();
 		}
+		drawSelectedFaces();
+	}
+
+	/**
+	 * Draws only the exposed faces of the nodes, the faces between two nodes
+	 * are skipped. Much less geometry than drawAsFaces() for solid octrees.
+	 * See getBoundaryQuads().
+	 */
+	public void drawAsBoundaryFaces() {
+		if (retained) {
+			drawRetained(DRAW_BOUNDARY);
+		} else {
+			float[] quads = getBoundaryQuads();
+			p5.beginShape(PConstants.QUADS);
+			for (int i = 0; i < quads.length; i += 3) {
+				p5.vertex(quads[i], quads[i + 1], quads[i + 2]);
+			}
+			p5.endShape();
+		}
+		drawSelectedFaces();
+	}
+
+	/**
+	 * Gets the exposed faces of the nodes, as quads of 4 vertices with XYZ
+	 * coordinates (12 floats per quad), in the vertex order of drawAsFaces().
+	 * A face is exposed if no node touches it, or only the parts of it that no
+	 * smaller node touches are. Nested nodes are skipped, out of bounds nodes
+	 * get all of their faces. Computed once, until the nodes, the origin or
+	 * the dimensions change. Don't modify the returned array.
+	 */
+	public float[] getBoundaryQuads() {
+		OctNodeIndex index = this.getIndex();
+		if (boundaryQuads != null)
+			return boundaryQuads;
+		int[] masks = index.getFaceMasks();
+		float[] quads = new float[1024];
+		float[] box = new float[6];
+		int n = 0;
+		for (int i = 0; i < index.size(); i++) {
+			OctNode tempNode = index.getNode(i);
+			if (masks[i] == 0 || index.isCovered(tempNode))
+				continue;
+			for (OCT_FACE f : OCT_FACE.values()) {
+				if ((masks[i] & (1 << f.ordinal())) != 0) {
+					quads = addCellFace(quads, n, tempNode, f, box);
+					n += 12;
+				} else if ((masks[i] & (1 << (f.ordinal() + 6))) != 0) {
+					for (OctNode part : index.getExposedParts(i, f)) {
+						quads = addCellFace(quads, n, part, f, box);
+						n += 12;
+					}
+				}
+			}
+		}
+		for (OctNode tempNode : nodeList) {
+			if (index.find(tempNode) >= 0 || tempNode.isCodeWB(this))
+				continue;
+			for (OCT_FACE f : OCT_FACE.values()) {
+				quads = addCellFace(quads, n, tempNode, f, box);
+				n += 12;
+			}
+		}
+		boundaryQuads = Arrays.copyOf(quads, n);
+		return boundaryQuads;
+	}
+
+	// writes the 4 vertices of a face at _pos, grows the array if needed
+	private float[] addCellFace(float[] _quads, int _pos, OctNode _n,
+			OCT_FACE _f, float[] _box) {
+		float[] quads = _quads;
+		if (_pos + 12 > quads.length)
+			quads = Arrays.copyOf(quads, quads.length * 2);
+		float[] box = getCellBox(_n.codeR, _n.codeS, _n.codeT, _n.level, _box);
+		int pos = _pos;
+		for (int k = 0; k < 4; k++) {
+			int v = FACE_VERTICES[_f.ordinal() * 4 + k];
+			quads[pos++] = getCellX(box, v);
+			quads[pos++] = getCellY(box, v);
+			quads[pos++] = getCellZ(box, v);
+		}
+		return quads;
+	}
+
+	private void drawSelectedFaces() {
 		for (OctNode tempNode : selectedNodes) {
 			p5.fill(255, 0, 0,100);
 			p5.beginShape(PConstants.QUADS);
@@ -1054,6 +1990,239 @@ public class OctOctree implements java.io.Serializable {
 		}
 	}
 
+	/**
+	 * Draws the centers of the nodes in view. See drawAsFaces(float).
+	 */
+	public void drawAsCenters(float _lodPixels) {
+		if (!drawView(DRAW_CENTERS, _lodPixels))
+			drawAsCenters();
+	}
+
+	/**
+	 * Draws the vertices of the nodes in view. See drawAsFaces(float).
+	 */
+	public void drawAsVertices(float _lodPixels) {
+		if (!drawView(DRAW_VERTICES, _lodPixels))
+			drawAsVertices();
+	}
+
+	/**
+	 * Draws the edges of the nodes in view. See drawAsFaces(float).
+	 */
+	public void drawAsEdges(float _lodPixels) {
+		if (!drawView(DRAW_EDGES, _lodPixels))
+			drawAsEdges();
+	}
+
+	/**
+	 * Draws the faces of the nodes in view, in one single shape. The parts of
+	 * the octree outside of the camera frustum are skipped, and the parts
+	 * smaller than _lodPixels on screen are drawn as one bigger node. Use 0 to
+	 * only skip what is out of view. Requires an OpenGL renderer (P3D), else
+	 * drawAsFaces() is used. Out of bounds nodes are not drawn.
+	 */
+	public void drawAsFaces(float _lodPixels) {
+		if (!drawView(DRAW_FACES, _lodPixels)) {
+			drawAsFaces();
+			return;
+		}
+		drawSelectedFaces();
+	}
+
+	private static final int DRAW_CENTERS = 0;
+	private static final int DRAW_VERTICES = 1;
+	private static final int DRAW_EDGES = 2;
+	private static final int DRAW_FACES = 3;
+	private static final int DRAW_BOUNDARY = 4;
+
+	// vertices of the edges and faces, as offsets 0 or 1 along R, S and T
+	private static final int[] EDGE_VERTICES = new int[OCT_EDGE.values().length * 2];
+	private static final int[] FACE_VERTICES = new int[OCT_FACE.values().length * 4];
+	static {
+		int i = 0;
+		for (OCT_EDGE e : OCT_EDGE.values()) {
+			for (OCT_VERTEX v : e.getVertices()) {
+				EDGE_VERTICES[i++] = getVertexBits(v);
+			}
+		}
+		i = 0;
+		for (OCT_FACE f : OCT_FACE.values()) {
+			for (OCT_VERTEX v : f.getVertices()) {
+				FACE_VERTICES[i++] = getVertexBits(v);
+			}
+		}
+	}
+
+	private static int getVertexBits(OCT_VERTEX _v) {
+		return (_v.r > 0 ? 1 : 0) | (_v.s > 0 ? 2 : 0) | (_v.t > 0 ? 4 : 0);
+	}
+
+	private boolean drawView(int _mode, float _lodPixels) {
+		if (!(p5.g instanceof PGraphicsOpenGL))
+			return false;
+		PGraphicsOpenGL g = (PGraphicsOpenGL) p5.g;
+		PMatrix3D m = g.projmodelview;
+		// clip planes, -w <= x, y, z <= w, written as a*x + b*y + c*z + d <= 0
+		float[] planes = { -m.m30 - m.m00, -m.m31 - m.m01, -m.m32 - m.m02,
+				-m.m33 - m.m03, -m.m30 + m.m00, -m.m31 + m.m01,
+				-m.m32 + m.m02, -m.m33 + m.m03, -m.m30 - m.m10,
+				-m.m31 - m.m11, -m.m32 - m.m12, -m.m33 - m.m13,
+				-m.m30 + m.m10, -m.m31 + m.m11, -m.m32 + m.m12,
+				-m.m33 + m.m13, -m.m30 - m.m20, -m.m31 - m.m21,
+				-m.m32 - m.m22, -m.m33 - m.m23, -m.m30 + m.m20,
+				-m.m31 + m.m21, -m.m32 + m.m22, -m.m33 + m.m23 };
+		// pixels per unit of length, at a clip distance w of 1
+		float scale = Math.abs(g.projection.m11) * g.height / 2;
+		OctNodeIndex index = this.getIndex();
+		p5.beginShape(getShapeKind(_mode));
+		if (index.size() > 0)
+			drawView(index, OctRegion.convex(planes), m, scale, _lodPixels,
+					_mode, 0, 0, 0, index.size(), false, new float[6]);
+		p5.endShape();
+		return true;
+	}
+
+	private void drawView(OctNodeIndex _index, OctRegion _frustum,
+			PMatrix3D _m, float _scale, float _lodPixels, int _mode,
+			long _code, int _level, int _from, int _to, boolean _inside,
+			float[] _box) {
+		// _box is reused by the children, it is not read after them
+		float[] box = getCellBox(_code, _level, _box);
+		boolean inside = _inside;
+		if (!inside) {
+			int c = _frustum.classify(box[0], box[1], box[2], box[3], box[4],
+					box[5]);
+			if (c == OctRegion.OUTSIDE)
+				return;
+			inside = c == OctRegion.INSIDE;
+		}
+		// the node itself, or a cell too small on screen
+		boolean draw = _index.getNode(_from).level == _level;
+		if (!draw && _lodPixels > 0) {
+			float x = (box[0] + box[3]) / 2;
+			float y = (box[1] + box[4]) / 2;
+			float z = (box[2] + box[5]) / 2;
+			float w = _m.m30 * x + _m.m31 * y + _m.m32 * z + _m.m33;
+			float size = Math.max(box[3] - box[0],
+					Math.max(box[4] - box[1], box[5] - box[2]));
+			draw = w > 0 && size * _scale / w < _lodPixels;
+		}
+		if (draw) {
+			drawCell(null, _mode, box);
+			return;
+		}
+		int shift = 3 * (_index.getDepth() - _level - 1);
+		int from = _from;
+		for (int k = 0; k < 8 && from < _to; k++) {
+			long code = (_code << 3) | k;
+			int to = _index.getFirst((code + 1) << shift, from, _to);
+			if (to > from)
+				drawView(_index, _frustum, _m, _scale, _lodPixels, _mode, code,
+						_level + 1, from, to, inside, _box);
+			from = to;
+		}
+	}
+
+	/**
+	 * If true, drawAsFaces(), drawAsBoundaryFaces(), drawAsEdges(),
+	 * drawAsVertices() and drawAsCenters() use a PShape of the nodes, built at the first call and
+	 * built again only when the nodes, the origin or the dimensions change,
+	 * instead of sending all the vertices at every frame.
+	 */
+	public void setRetained(boolean _retained) {
+		retained = _retained;
+		shapes = null;
+	}
+
+	public boolean isRetained() {
+		return retained;
+	}
+
+	private void drawRetained(int _mode) {
+		checkCaches();
+		if (shapes == null)
+			shapes = new PShape[5];
+		if (shapes[_mode] == null) {
+			PShape shape = p5.createShape();
+			shape.beginShape(getShapeKind(_mode));
+			if (_mode == DRAW_BOUNDARY) {
+				float[] quads = getBoundaryQuads();
+				for (int i = 0; i < quads.length; i += 3) {
+					shape.vertex(quads[i], quads[i + 1], quads[i + 2]);
+				}
+			} else {
+				float[] box = new float[6];
+				for (OctNode tempNode : nodeList) {
+					drawCell(shape, _mode, getCellBox(tempNode.codeR,
+							tempNode.codeS, tempNode.codeT, tempNode.level,
+							box));
+				}
+			}
+			shape.endShape();
+			shape.disableStyle();
+			shapes[_mode] = shape;
+		}
+		p5.shape(shapes[_mode]);
+	}
+
+	private static int getShapeKind(int _mode) {
+		if (_mode == DRAW_FACES || _mode == DRAW_BOUNDARY)
+			return PConstants.QUADS;
+		if (_mode == DRAW_EDGES)
+			return PConstants.LINES;
+		return PConstants.POINTS;
+	}
+
+	// adds the vertices of one cell to a shape, or to the current shape if null
+	private void drawCell(PShape _shape, int _mode, float[] _box) {
+		switch (_mode) {
+		case DRAW_CENTERS:
+			drawVertex(_shape, (_box[0] + _box[3]) / 2,
+					(_box[1] + _box[4]) / 2, (_box[2] + _box[5]) / 2);
+			break;
+		case DRAW_VERTICES:
+			for (int v = 0; v < 8; v++) {
+				drawCellVertex(_shape, _box, v);
+			}
+			break;
+		case DRAW_EDGES:
+			for (int v : EDGE_VERTICES) {
+				drawCellVertex(_shape, _box, v);
+			}
+			break;
+		case DRAW_FACES:
+			for (int v : FACE_VERTICES) {
+				drawCellVertex(_shape, _box, v);
+			}
+			break;
+		}
+	}
+
+	private void drawCellVertex(PShape _shape, float[] _box, int _v) {
+		drawVertex(_shape, getCellX(_box, _v), getCellY(_box, _v),
+				getCellZ(_box, _v));
+	}
+
+	// the box is sorted, the vertex is read in the RST orientation
+	private float getCellX(float[] _box, int _v) {
+		return ((_v & 1) != 0) == (dimension.x > 0) ? _box[3] : _box[0];
+	}
+
+	private float getCellY(float[] _box, int _v) {
+		return ((_v & 2) != 0) == (dimension.y > 0) ? _box[4] : _box[1];
+	}
+
+	private float getCellZ(float[] _box, int _v) {
+		return ((_v & 4) != 0) == (dimension.z > 0) ? _box[5] : _box[2];
+	}
+
+	private void drawVertex(PShape _shape, float _x, float _y, float _z) {
+		if (_shape == null)
+			p5.vertex(_x, _y, _z);
+		else
+			_shape.vertex(_x, _y, _z);
+	}
+
 	/**
 	 * Requires the min and max depth level to the octree to be set correctly.
 	 * Does not work with nested nodes.
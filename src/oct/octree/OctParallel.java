@@ -0,0 +1,117 @@
+/**
+ * OCT Octree
+ * A Processing library to create, modify and display Octree structures.
+ * http://www.thomaswegener.ch/OCT
+ *
+ * Based on:
+ * Hanan Samet, Neighbor finding in images represented by octrees
+ * Computer Vision, Graphics, and Image Processing, Volume 46, Issue 3, June 1989, Pages 367-386
+ * http://dx.doi.org/10.1016/0734-189X(89)90038-8.
+ * (http://www.sciencedirect.com/science/article/pii/0734189X89900388)
+ *
+ * Copyright (C) 2015 Thomas Wegener
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author      Thomas Wegener
+ * @modified    2015
+ * @version     0.1 (1)
+ */
+
+package oct.octree;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import processing.core.PApplet;
+
+/**
+ * Runs a loop in parallel on a shared pool of daemon threads, one thread per
+ * processor. The loop is split in contiguous chunks and the call returns when
+ * all of them are done. Tasks must not call run() themselves.
+ */
+public class OctParallel {
+
+	/**
+	 * A part of a loop, from _from (included) to _to (excluded).
+	 */
+	public interface Task {
+		public void run(int _from, int _to);
+	}
+
+	private static ExecutorService pool;
+
+	public static int getThreadCount() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Runs the loop from 0 to _count in chunks of at least _minChunk
+	 * iterations. Small loops are run in the calling thread.
+	 */
+	public static void run(int _count, int _minChunk, final Task _task) {
+		int threads = getThreadCount();
+		int chunks = Math.min(threads * 4, _count / Math.max(1, _minChunk));
+		if (threads == 1 || chunks <= 1) {
+			_task.run(0, _count);
+			return;
+		}
+		ArrayList<Future<Object>> futures = new ArrayList<Future<Object>>();
+		for (int i = 0; i < chunks; i++) {
+			final int from = (int) ((long) _count * i / chunks);
+			final int to = (int) ((long) _count * (i + 1) / chunks);
+			futures.add(getPool().submit(new Callable<Object>() {
+				public Object call() {
+					_task.run(from, to);
+					return null;
+				}
+			}));
+		}
+		for (Future<Object> f : futures) {
+			try {
+				f.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				PApplet.println("ERROR in OctParallel: interrupted.");
+				return;
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException)
+					throw (RuntimeException) e.getCause();
+				throw new RuntimeException(e.getCause());
+			}
+		}
+	}
+
+	private static synchronized ExecutorService getPool() {
+		if (pool == null) {
+			pool = Executors.newFixedThreadPool(getThreadCount(),
+					new ThreadFactory() {
+						public Thread newThread(Runnable _r) {
+							Thread t = new Thread(_r, "OctParallel");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+		return pool;
+	}
+
+}
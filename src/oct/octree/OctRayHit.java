@@ -0,0 +1,53 @@
+/**
+ * OCT Octree
+ * A Processing library to create, modify and display Octree structures.
+ * http://www.thomaswegener.ch/OCT
+ *
+ * Based on:
+ * Hanan Samet, Neighbor finding in images represented by octrees
+ * Computer Vision, Graphics, and Image Processing, Volume 46, Issue 3, June 1989, Pages 367-386
+ * http://dx.doi.org/10.1016/0734-189X(89)90038-8.
+ * (http://www.sciencedirect.com/science/article/pii/0734189X89900388)
+ *
+ * Copyright (C) 2015 Thomas Wegener
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author      Thomas Wegener
+ * @modified    2015
+ * @version     0.1 (1)
+ */
+
+package oct.octree;
+
+/**
+ * The first node hit by a ray, with the distance from the start of the ray
+ * and the point where the ray enters the node, in XYZ coordinates. If the ray
+ * starts inside the node, the distance is 0 and the point is the start.
+ */
+public class OctRayHit {
+
+	public OctNode node;
+	public float distance;
+	public OctXYZ point;
+
+	public OctRayHit(OctNode _node, float _distance, OctXYZ _point) {
+		node = _node;
+		distance = _distance;
+		point = _point;
+	}
+
+}
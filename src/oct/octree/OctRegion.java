@@ -0,0 +1,167 @@
+/**
+ * OCT Octree
+ * A Processing library to create, modify and display Octree structures.
+ * http://www.thomaswegener.ch/OCT
+ *
+ * Based on:
+ * Hanan Samet, Neighbor finding in images represented by octrees
+ * Computer Vision, Graphics, and Image Processing, Volume 46, Issue 3, June 1989, Pages 367-386
+ * http://dx.doi.org/10.1016/0734-189X(89)90038-8.
+ * (http://www.sciencedirect.com/science/article/pii/0734189X89900388)
+ *
+ * Copyright (C) 2015 Thomas Wegener
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author      Thomas Wegener
+ * @modified    2015
+ * @version     0.1 (1)
+ */
+
+package oct.octree;
+
+/**
+ * A region of the space used by the range queries of the octree. A region
+ * only needs to tell if an axis aligned box, in XYZ coordinates, is outside,
+ * partly inside or completely inside of it. The test can be conservative:
+ * answering INTERSECT for a box outside or inside is slower but still
+ * correct.
+ */
+public abstract class OctRegion {
+
+	public static final int OUTSIDE = 0;
+	public static final int INTERSECT = 1;
+	public static final int INSIDE = 2;
+
+	/**
+	 * Tells if the box is OUTSIDE, INTERSECTs or is INSIDE the region.
+	 */
+	public abstract int classify(float minX, float minY, float minZ,
+			float maxX, float maxY, float maxZ);
+
+	// *************************************************************************************
+	// REGIONS
+	// *************************************************************************************
+
+	/**
+	 * Axis aligned box between two corners.
+	 */
+	public static OctRegion box(OctXYZ _corner0, OctXYZ _corner1) {
+		return new Box(Math.min(_corner0.x, _corner1.x), Math.min(_corner0.y,
+				_corner1.y), Math.min(_corner0.z, _corner1.z), Math.max(
+				_corner0.x, _corner1.x), Math.max(_corner0.y, _corner1.y),
+				Math.max(_corner0.z, _corner1.z));
+	}
+
+	/**
+	 * Sphere defined by its center and radius.
+	 */
+	public static OctRegion sphere(OctXYZ _center, float _radius) {
+		return new Sphere(_center.x, _center.y, _center.z, _radius);
+	}
+
+	/**
+	 * Convex region, intersection of half spaces. Each plane is given by 4
+	 * values a, b, c, d, and the points inside verify a*x + b*y + c*z + d <= 0.
+	 */
+	public static OctRegion convex(float[] _planes) {
+		return new Convex(_planes);
+	}
+
+	private static class Box extends OctRegion {
+		float minX, minY, minZ, maxX, maxY, maxZ;
+
+		Box(float _minX, float _minY, float _minZ, float _maxX, float _maxY,
+				float _maxZ) {
+			minX = _minX;
+			minY = _minY;
+			minZ = _minZ;
+			maxX = _maxX;
+			maxY = _maxY;
+			maxZ = _maxZ;
+		}
+
+		public int classify(float _minX, float _minY, float _minZ,
+				float _maxX, float _maxY, float _maxZ) {
+			if (_maxX < minX || _minX > maxX || _maxY < minY || _minY > maxY
+					|| _maxZ < minZ || _minZ > maxZ)
+				return OUTSIDE;
+			if (_minX >= minX && _maxX <= maxX && _minY >= minY
+					&& _maxY <= maxY && _minZ >= minZ && _maxZ <= maxZ)
+				return INSIDE;
+			return INTERSECT;
+		}
+	}
+
+	private static class Sphere extends OctRegion {
+		float x, y, z, radius2;
+
+		Sphere(float _x, float _y, float _z, float _radius) {
+			x = _x;
+			y = _y;
+			z = _z;
+			radius2 = _radius * _radius;
+		}
+
+		public int classify(float _minX, float _minY, float _minZ,
+				float _maxX, float _maxY, float _maxZ) {
+			// closest and farthest points of the box
+			float dx = Math.max(Math.max(_minX - x, 0), x - _maxX);
+			float dy = Math.max(Math.max(_minY - y, 0), y - _maxY);
+			float dz = Math.max(Math.max(_minZ - z, 0), z - _maxZ);
+			if (dx * dx + dy * dy + dz * dz > radius2)
+				return OUTSIDE;
+			dx = Math.max(x - _minX, _maxX - x);
+			dy = Math.max(y - _minY, _maxY - y);
+			dz = Math.max(z - _minZ, _maxZ - z);
+			if (dx * dx + dy * dy + dz * dz <= radius2)
+				return INSIDE;
+			return INTERSECT;
+		}
+	}
+
+	private static class Convex extends OctRegion {
+		float[] planes;
+
+		Convex(float[] _planes) {
+			planes = _planes.clone();
+		}
+
+		public int classify(float _minX, float _minY, float _minZ,
+				float _maxX, float _maxY, float _maxZ) {
+			int result = INSIDE;
+			for (int i = 0; i + 3 < planes.length; i += 4) {
+				float a = planes[i];
+				float b = planes[i + 1];
+				float c = planes[i + 2];
+				float d = planes[i + 3];
+				// corners of the box closest and farthest along the normal
+				float near = a * (a > 0 ? _minX : _maxX) + b
+						* (b > 0 ? _minY : _maxY) + c * (c > 0 ? _minZ : _maxZ)
+						+ d;
+				if (near > 0)
+					return OUTSIDE;
+				float far = a * (a > 0 ? _maxX : _minX) + b
+						* (b > 0 ? _maxY : _minY) + c * (c > 0 ? _maxZ : _minZ)
+						+ d;
+				if (far > 0)
+					result = INTERSECT;
+			}
+			return result;
+		}
+	}
+
+}
@@ -0,0 +1,284 @@
+/**
+ * OCT Octree
+ * A Processing library to create, modify and display Octree structures.
+ * http://www.thomaswegener.ch/OCT
+ *
+ * Based on:
+ * Hanan Samet, Neighbor finding in images represented by octrees
+ * Computer Vision, Graphics, and Image Processing, Volume 46, Issue 3, June 1989, Pages 367-386
+ * http://dx.doi.org/10.1016/0734-189X(89)90038-8.
+ * (http://www.sciencedirect.com/science/article/pii/0734189X89900388)
+ *
+ * Copyright (C) 2015 Thomas Wegener
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ * 
+ * @author      Thomas Wegener
+ * @modified    2015
+ * @version     0.1 (1)
+ */
+
+package oct.polygonization;
+
+import java.util.Arrays;
+
+import oct.enums.OCT_FACE;
+import oct.enums.OCT_VERTEX;
+import oct.octree.OctMorton;
+import oct.octree.OctNode;
+import oct.octree.OctNodeIndex;
+import oct.octree.OctOctree;
+import oct.octree.OctParallel;
+import oct.octree.OctXYZ;
+import processing.core.PApplet;
+import processing.core.PConstants;
+import processing.core.PShape;
+
+/**
+ * Same faces as OctCuberilleQuad, computed in a few passes over the sorted
+ * index of the octree instead of searching the neighbors of every face. The
+ * exposed faces of all the nodes are found in one parallel sweep (see
+ * OctNodeIndex.getFaceMasks()), also when the neighbors have other levels,
+ * and are stored as quads of indices into an array of welded vertices. The
+ * min and max levels don't need to be set. Out of bounds and nested nodes are
+ * skipped.
+ */
+public class OctCuberilleFast extends OctPoly {
+
+	public PApplet p5;
+	public OctOctree myOctree;
+	public OctMesh octMesh;
+
+	// welded vertices (XYZ) and quads (4 vertex indices each)
+	private float[] vertices = new float[0];
+	private int[] quads = new int[0];
+	private boolean meshBuilt = true;
+	private PShape shape;
+
+	// vertices of the faces, as offsets 0 or 1 along R, S and T
+	private static final OCT_FACE[] FACES = OCT_FACE.values();
+	private static final int[] FACE_VERTICES = new int[FACES.length * 4];
+	static {
+		int i = 0;
+		for (OCT_FACE f : FACES) {
+			for (OCT_VERTEX v : f.getVertices()) {
+				FACE_VERTICES[i++] = (v.r > 0 ? 1 : 0) | (v.s > 0 ? 2 : 0)
+						| (v.t > 0 ? 4 : 0);
+			}
+		}
+	}
+
+	public OctCuberilleFast(PApplet _p5, OctOctree _octree) {
+		p5 = _p5;
+		myOctree = _octree;
+		octMesh = new OctMesh(p5);
+	}
+
+	public void setup() {
+		octMesh.invalidate();
+		octMesh.faceList.clear();
+		shape = null;
+		final OctNodeIndex index = myOctree.getIndex();
+		final int[] masks = index.getFaceMasks();
+		final int depth = index.getDepth();
+		int size = index.size();
+		// number of quads of each node, then offsets
+		final int[] offsets = new int[size + 1];
+		OctParallel.run(size, 256, new OctParallel.Task() {
+			public void run(int _from, int _to) {
+				for (int i = _from; i < _to; i++) {
+					offsets[i + 1] = addFaces(index, masks[i], i, depth, null, 0);
+				}
+			}
+		});
+		for (int i = 0; i < size; i++) {
+			offsets[i + 1] += offsets[i];
+		}
+		// vertices of the quads, as codes on the lattice of the deepest level
+		final long[] keys = new long[offsets[size] * 4];
+		OctParallel.run(size, 256, new OctParallel.Task() {
+			public void run(int _from, int _to) {
+				for (int i = _from; i < _to; i++) {
+					addFaces(index, masks[i], i, depth, keys, offsets[i] * 4);
+				}
+			}
+		});
+		// weld the vertices with an open addressing table of the codes
+		int capacity = 16;
+		while (capacity < keys.length * 2) {
+			capacity <<= 1;
+		}
+		long[] table = new long[capacity];
+		int[] tableIndex = new int[capacity];
+		Arrays.fill(table, -1);
+		long[] lattice = new long[keys.length];
+		int[] tempQuads = new int[keys.length];
+		int n = 0;
+		for (int i = 0; i < keys.length; i++) {
+			long key = keys[i];
+			int h = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & (capacity - 1);
+			while (table[h] != -1 && table[h] != key) {
+				h = (h + 1) & (capacity - 1);
+			}
+			if (table[h] == -1) {
+				table[h] = key;
+				tableIndex[h] = n;
+				lattice[n++] = key;
+			}
+			tempQuads[i] = tableIndex[h];
+		}
+		float[] tempVertices = new float[n * 3];
+		OctXYZ origin = myOctree.getOrigin();
+		OctXYZ dimension = myOctree.getDimension();
+		float scale = 1f / (1 << depth);
+		for (int i = 0; i < n; i++) {
+			tempVertices[i * 3] = origin.x + OctMorton.decodeR(lattice[i])
+					* scale * dimension.x;
+			tempVertices[i * 3 + 1] = origin.y + OctMorton.decodeS(lattice[i])
+					* scale * dimension.y;
+			tempVertices[i * 3 + 2] = origin.z + OctMorton.decodeT(lattice[i])
+					* scale * dimension.z;
+		}
+		vertices = tempVertices;
+		quads = tempQuads;
+		meshBuilt = false;
+	}
+
+	/**
+	 * The cuberille doesn't depend on a threshold, see setupOnce().
+	 */
+	public OctMesh[] setup(float[] _thresholds) {
+		return setupOnce(_thresholds);
+	}
+
+	public void draw() {
+		if (retained) {
+			if (shape == null) {
+				shape = p5.createShape();
+				shape.beginShape(PConstants.QUADS);
+				for (int i : quads) {
+					shape.vertex(vertices[i * 3], vertices[i * 3 + 1],
+							vertices[i * 3 + 2]);
+				}
+				shape.endShape();
+				shape.disableStyle();
+			}
+			p5.shape(shape);
+			return;
+		}
+		p5.beginShape(PConstants.QUADS);
+		for (int i : quads) {
+			p5.vertex(vertices[i * 3], vertices[i * 3 + 1], vertices[i * 3 + 2]);
+		}
+		p5.endShape();
+	}
+
+	/**
+	 * Gets the mesh, filled from the quads at the first call after setup().
+	 */
+	public OctMesh getMesh() {
+		if (!meshBuilt) {
+			for (int i = 0; i < quads.length; i += 4) {
+				octMesh.faceList.add(new OctMeshFace(getVertex(quads[i]),
+						getVertex(quads[i + 1]), getVertex(quads[i + 2]),
+						getVertex(quads[i + 3])));
+			}
+			meshBuilt = true;
+		}
+		return octMesh;
+	}
+
+	/**
+	 * Gets the quads as an indexed mesh, two triangles per quad, directly from
+	 * the welded vertices.
+	 */
+	public OctIndexedMesh getIndexedMesh() {
+		OctIndexedMesh tempMesh = new OctIndexedMesh();
+		for (int i = 0; i < vertices.length; i += 3) {
+			tempMesh.addVertex(vertices[i], vertices[i + 1], vertices[i + 2]);
+		}
+		for (int i = 0; i < quads.length; i += 4) {
+			tempMesh.addQuad(quads[i], quads[i + 1], quads[i + 2], quads[i + 3]);
+		}
+		return tempMesh;
+	}
+
+	/**
+	 * Gets the welded vertices, as XYZ coordinates. Don't modify the array.
+	 */
+	public float[] getVertices() {
+		return vertices;
+	}
+
+	/**
+	 * Gets the quads, as 4 indices of vertices each (see getVertices()), in
+	 * the vertex order of OctCuberilleQuad. Don't modify the array.
+	 */
+	public int[] getQuads() {
+		return quads;
+	}
+
+	public int getVertexCount() {
+		return vertices.length / 3;
+	}
+
+	public int getQuadCount() {
+		return quads.length / 4;
+	}
+
+	private OctXYZ getVertex(int _i) {
+		return new OctXYZ(vertices[_i * 3], vertices[_i * 3 + 1],
+				vertices[_i * 3 + 2]);
+	}
+
+	// writes the vertices of the exposed faces of a node, if _keys is not
+	// null, and returns the number of faces
+	private static int addFaces(OctNodeIndex _index, int _mask, int _i,
+			int _depth, long[] _keys, int _pos) {
+		if (_mask == 0)
+			return 0;
+		OctNode n = _index.getNode(_i);
+		if (_index.isCovered(n))
+			return 0;
+		int count = 0;
+		for (OCT_FACE f : FACES) {
+			if ((_mask & (1 << f.ordinal())) != 0) {
+				if (_keys != null)
+					addFace(_keys, _pos + count * 4, n, f, _depth);
+				count++;
+			} else if ((_mask & (1 << (f.ordinal() + 6))) != 0) {
+				for (OctNode part : _index.getExposedParts(_i, f)) {
+					if (_keys != null)
+						addFace(_keys, _pos + count * 4, part, f, _depth);
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	private static void addFace(long[] _keys, int _pos, OctNode _n,
+			OCT_FACE _f, int _depth) {
+		int shift = _depth - _n.getLevel();
+		for (int k = 0; k < 4; k++) {
+			int v = FACE_VERTICES[_f.ordinal() * 4 + k];
+			_keys[_pos + k] = OctMorton.encode((_n.getCodeR() + (v & 1)) << shift,
+					(_n.getCodeS() + (v >> 1 & 1)) << shift,
+					(_n.getCodeT() + (v >> 2 & 1)) << shift);
+		}
+	}
+
+}
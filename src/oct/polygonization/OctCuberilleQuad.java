@@ -53,6 +53,9 @@ public class OctCuberilleQuad extends OctPoly {
 	public OctOctree myOctree;
 	public OctMesh octMesh;
 
+	// the nodes of a setup in steps
+	protected OctNode[] nodes;
+
 	public OctCuberilleQuad(PApplet _p5, OctOctree _octree) {
 		p5 = _p5;
 		myOctree = _octree;
@@ -104,15 +107,40 @@ public class OctCuberilleQuad extends OctPoly {
 	}
 
 	public void setup() {
+		runSteps();
+	}
+
+	/**
+	 * The cuberille doesn't depend on a threshold, see setupOnce().
+	 */
+	public OctMesh[] setup(float[] _thresholds) {
+		return setupOnce(_thresholds);
+	}
+
+	// a step per node
+	protected int beginSteps() {
+		octMesh.invalidate();
 		octMesh.faceList.clear();
-		for (OctNode tempNode : myOctree.getNodes()) {
-			for (OCT_FACE e : OCT_FACE.values()) {
-				recursion(tempNode, e);
-			}
+		nodes = myOctree.getNodes().toArray(new OctNode[0]);
+		return nodes.length;
+	}
+
+	// the faces of a node
+	protected void doStep(int _step) {
+		for (OCT_FACE e : OCT_FACE.values()) {
+			recursion(nodes[_step], e);
 		}
 	}
 
+	protected void endSteps() {
+		nodes = null;
+	}
+
 	public void draw() {
+		if (retained) {
+			octMesh.drawRetained();
+			return;
+		}
 		for (OctMeshFace tempFace : octMesh.faceList) {
 			p5.beginShape(PApplet.QUADS);
 			p5.vertex(tempFace.v0.x, tempFace.v0.y, tempFace.v0.z);
@@ -19,16 +19,18 @@ public class OctCuberilleTri extends OctCuberilleQuad {
 		super(_p5, _octree);
 	}
 	
-	public void setup() {
-		octMesh.faceList.clear();
-		for (OctNode tempNode : myOctree.getNodes()) {
-			for (OCT_FACE e : OCT_FACE.values()) {
-				recursion(tempNode, e);
-			}
+	// the faces of a node, as triangles
+	protected void doStep(int _step) {
+		for (OCT_FACE e : OCT_FACE.values()) {
+			recursion(nodes[_step], e);
 		}
 	}
 	
 	public void draw() {
+		if (retained) {
+			octMesh.drawRetained();
+			return;
+		}
 		for (OctMeshFace tempFace : octMesh.faceList) {
 			p5.beginShape(PApplet.TRIANGLES);
 			p5.vertex(tempFace.v0.x, tempFace.v0.y, tempFace.v0.z);
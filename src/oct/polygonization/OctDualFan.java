@@ -4,11 +4,9 @@ import java.util.ArrayList;
 
 import oct.octree.OctNode;
 import oct.octree.OctOctree;
-import oct.octree.OctRST;
 import oct.octree.OctXYZ;
 import oct.enums.OCT_EDGE;
 import oct.enums.OCT_FACE;
-import oct.enums.OCT_VERTEX;
 import oct.math.OctFunction;
 import processing.core.PApplet;
 
@@ -29,6 +27,9 @@ public class OctDualFan extends OctPoly {
 	private float nodeSizeY;
 	private float nodeSizeZ;
 
+	// the nodes of a setup in steps
+	private OctNode[] nodes;
+
 	private int flip = -1;
 	private int close = -1;
 	private float adaptMultiplier = 1;
@@ -77,156 +78,95 @@ public class OctDualFan extends OctPoly {
 		adaptMultiplier = _value;
 	}
 
+	public OctMesh getMesh() {
+		return octMesh;
+	}
+
 	public void setup() {
+		runSteps();
+	}
 
-		OctXYZ temp = myOctree.getOrigin().add(myOctree.getDimension());
-		float x1 = myOctree.getOrigin().x;
-		float y1 = myOctree.getOrigin().y;
-		float z1 = myOctree.getOrigin().z;
-		float x2 = temp.x;
-		float y2 = temp.y;
-		float z2 = temp.z;
-
-		for (OctNode tempNode : myOctree.nodeList) {
-
-			// could be pre-computed, since they are necessary anyway to include
-			// or not the node
-			for (OCT_VERTEX v : OCT_VERTEX.getAll()) {
-				if (close == 1
-						&& (tempNode.getVertex(v).toXYZ(myOctree).x == x1
-						|| tempNode.getVertex(v).toXYZ(myOctree).x == x2
-						|| tempNode.getVertex(v).toXYZ(myOctree).y == y1
-						|| tempNode.getVertex(v).toXYZ(myOctree).y == y2
-						|| tempNode.getVertex(v).toXYZ(myOctree).z == z1 || tempNode
-						.getVertex(v).toXYZ(myOctree).z == z2)) {
-					valueAt[v.getOrdinal()] = closeValue;
-				} else {
-					valueAt[v.getOrdinal()] = myFunction.compute(tempNode
-							.getVertex(v).toXYZ(myOctree).x, tempNode
-							.getVertex(v).toXYZ(myOctree).y, tempNode
-							.getVertex(v).toXYZ(myOctree).z);
-				}
-			}
+	// corner values, then a step per node
+	protected int beginSteps() {
+		octMesh.invalidate();
+		octMesh.faceList.clear();
+
+		// corner values and edge crossings, only computed again if needed
+		getHermite(myOctree).update(this, myFunction, threshold, flip,
+				close == 1, closeValue, false, 3);
+		nodes = myOctree.nodeList.toArray(new OctNode[0]);
+		return nodes.length;
+	}
 
-			int r = tempNode.getCodeR();
-			int s = tempNode.getCodeS();
-			int t = tempNode.getCodeT();
+	// the vertex of a node and its faces
+	protected void doStep(int _step) {
+		OctNode tempNode = nodes[_step];
+		hermite.getValues(tempNode, valueAt);
 
-			nodeSizeX = 1f / (1 << tempNode.getLevel());
-			nodeSizeY = 1f / (1 << tempNode.getLevel());
-			nodeSizeZ = 1f / (1 << tempNode.getLevel());
+		vertexList = new OctXYZ[12];
 
-			vertexList = new OctXYZ[12];
+		masspoint = new OctXYZ();
+		masspoint = tempNode.getCenter().toXYZ(myOctree);
 
-			masspoint = new OctXYZ();
-			masspoint = tempNode.getCenter().toXYZ(myOctree);
+		//if (score != 0 && score != 8) {
+			for (OCT_EDGE e : OCT_EDGE.values()) {
+				vertexList[e.getOrdinal()] = hermite.getPoint(tempNode, e);
+			}
 
-			//if (score != 0 && score != 8) {
-				for (OCT_EDGE e : OCT_EDGE.values()) {
-					boolean bool1 = false;
-					boolean bool2 = false;
-					if (valueAt[e.getV0().getOrdinal()] * flip > threshold
-							* flip) {
-						bool1 = true;
-					}
-					if (valueAt[e.getV1().getOrdinal()] * flip > threshold
-							* flip) {
-						bool2 = true;
-					}
-					if (bool1 != bool2) {
-						float adapt = PApplet.map(threshold, valueAt[e.getV0()
-						                                             .getOrdinal()],
-						                                             valueAt[e.getV1().getOrdinal()], -1, 1);
-
-						// 1 position inside the node
-						OctRST vX = new OctRST((e.r) * nodeSizeX / 2, (e.s)
-								* nodeSizeY / 2, (e.t) * nodeSizeZ / 2);
-
-						// 2 smooth on the edge
-						if (e.r == 0)
-							vX.r += adapt  * nodeSizeX / 2;
-						if (e.s == 0)
-							vX.s += adapt  * nodeSizeY / 2;
-						if (e.t == 0)
-							vX.t += adapt  * nodeSizeZ / 2;
-
-						// 3 position inside the octree
-						vX.addSelf((float) (r + 0.5) * nodeSizeX,
-								(float) (s + 0.5) * nodeSizeY,
-								(float) (t + 0.5) * nodeSizeZ);
-						// vX = new OctXYZ(vX.x, vX.y, vX.z);
-						vertexList[e.getOrdinal()] = vX.toXYZ(myOctree);
-						// PApplet.println(vX.x);
-					}
+			OctXYZ solution = new OctXYZ();
+			int count = 0;
+			for (int i = 0; i < 12; i++) {
+				if (vertexList[i] != null) {
+					solution.addSelf(vertexList[i]);
+					count++;
 				}
-
-				OctXYZ solution = new OctXYZ();
-				int count = 0;
-				for (int i = 0; i < 12; i++) {
-					if (vertexList[i] != null) {
-						solution.addSelf(vertexList[i]);
-						count++;
+			}
+			solution.scaleSelf(1f / count);
+
+			solution = solution.scale(adaptMultiplier).add(masspoint.scale((1-adaptMultiplier)));
+
+			for (OCT_FACE f : OCT_FACE.values()) {
+				ArrayList<OCT_EDGE> list = f.getEdges();
+				int ok = 0;
+				for (int i = 0; i < list.size(); i++) {
+					if (vertexList[list.get(i).getOrdinal()] != null
+							&& vertexList[list.get((i + 1) % 4)
+							              .getOrdinal()] != null) {
+						OctXYZ tV0 = solution;
+						OctXYZ tV1 = vertexList[list.get(i).getOrdinal()];
+						OctXYZ tV2 = vertexList[list.get((i + 1) % 4)
+						                        .getOrdinal()];
+						octMesh.faceList
+						.add(new OctMeshFace(tV0, tV1, tV2));
+						ok = 1;
 					}
 				}
-				solution.scaleSelf(1f / count);
-
-				solution = solution.scale(adaptMultiplier).add(masspoint.scale((1-adaptMultiplier)));
-				
-				for (OCT_FACE f : OCT_FACE.values()) {
-					ArrayList<OCT_EDGE> list = f.getEdges();
-					int ok = 0;
+				if (ok == 0) {
 					for (int i = 0; i < list.size(); i++) {
+
 						if (vertexList[list.get(i).getOrdinal()] != null
-								&& vertexList[list.get((i + 1) % 4)
+								&& vertexList[list.get((i + 2) % 4)
 								              .getOrdinal()] != null) {
 							OctXYZ tV0 = solution;
-							OctXYZ tV1 = vertexList[list.get(i).getOrdinal()];
-							OctXYZ tV2 = vertexList[list.get((i + 1) % 4)
+							OctXYZ tV1 = vertexList[list.get(i)
 							                        .getOrdinal()];
-							octMesh.faceList
-							.add(new OctMeshFace(tV0, tV1, tV2));
-							ok = 1;
-						}
-					}
-					if (ok == 0) {
-						for (int i = 0; i < list.size(); i++) {
-
-							if (vertexList[list.get(i).getOrdinal()] != null
-									&& vertexList[list.get((i + 2) % 4)
-									              .getOrdinal()] != null) {
-								OctXYZ tV0 = solution;
-								OctXYZ tV1 = vertexList[list.get(i)
-								                        .getOrdinal()];
-								OctXYZ tV2 = vertexList[list.get((i + 2) % 4)
-								                        .getOrdinal()];
-								octMesh.faceList.add(new OctMeshFace(tV0, tV1,
-										tV2));
-							}
+							OctXYZ tV2 = vertexList[list.get((i + 2) % 4)
+							                        .getOrdinal()];
+							octMesh.faceList.add(new OctMeshFace(tV0, tV1,
+									tV2));
 						}
 					}
 				}
-			//}
-		}
+			}
+		//}
+	}
+
+	protected void endSteps() {
+		nodes = null;
 	}
 
 	public OctXYZ getGradient(OctXYZ _v) {
-		OctXYZ g = new OctXYZ();
-		int r = 3;
-		for (int i = -r; i <= r; i++) {
-			for (int j = -r; j <= r; j++) {
-				for (int k = -r; k <= r; k++) {
-					float fac = 0.5f / (1 << myOctree.getMaxDepth());
-					OctXYZ p = new OctXYZ();
-					p = _v.add(new OctXYZ(fac * i * myOctree.getDimension().x,
-							fac * j * myOctree.getDimension().y, fac * k
-							* myOctree.getDimension().z));
-					float ff = myFunction.compute(p.x, p.y, p.z);
-					g.addSelf(_v.sub(p).scale(ff));
-				}
-			}
-		}
-		g = g.normalize().scale(-1f);
-		return new OctXYZ(g);
+		return estimateGradient(myFunction, myOctree, _v, 3);
 	}
 	
 	public void drawGradient() {
@@ -242,6 +182,10 @@ public class OctDualFan extends OctPoly {
 	}
 
 	public void draw() {
+		if (retained) {
+			octMesh.drawRetained();
+			return;
+		}
 		for (OctMeshFace tempFace : octMesh.faceList) {
 			p5.beginShape(PApplet.TRIANGLES);
 			p5.vertex(tempFace.v0.x, tempFace.v0.y, tempFace.v0.z);
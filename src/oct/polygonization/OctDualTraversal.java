@@ -0,0 +1,413 @@
+/**
+ * OCT Octree
+ * A Processing library to create, modify and display Octree structures.
+ * http://www.thomaswegener.ch/OCT
+ *
+ * Based on:
+ * Hanan Samet, Neighbor finding in images represented by octrees
+ * Computer Vision, Graphics, and Image Processing, Volume 46, Issue 3, June 1989, Pages 367-386
+ * http://dx.doi.org/10.1016/0734-189X(89)90038-8.
+ * (http://www.sciencedirect.com/science/article/pii/0734189X89900388)
+ *
+ * Copyright (C) 2015 Thomas Wegener
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ * 
+ * @author      Thomas Wegener
+ * @modified    2015
+ * @version     0.1 (1)
+ */
+
+package oct.polygonization;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+import oct.octree.OctNode;
+import oct.octree.OctNodeIndex;
+import oct.octree.OctParallel;
+import oct.octree.OctXYZ;
+
+/**
+ * Finds the cells around the edges of an octree, for the dual
+ * polygonizations, based on: Tao Ju, Frank Losasso, Scott Schaefer, Joe
+ * Warren, Dual Contouring of Hermite Data, SIGGRAPH 2002. The tree made by
+ * the indexed nodes is traversed from the top: cellProc() goes into the
+ * children of a cell, and into the faces and the edges between them,
+ * faceProc() into the faces and edges between two cells, and edgeProc() into
+ * the edges between four cells. Each minimal edge (the edge of the smallest
+ * cell around it) is visited exactly once, without looking for neighbors. The
+ * cells are split at the top level and traversed in parallel. Only the indexed
+ * nodes are traversed: the out of bounds nodes (outside the cube of the
+ * octree) get no faces, see OctNodeIndex.
+ */
+public class OctDualTraversal {
+
+	/**
+	 * Receives the minimal edges. Called from several threads at once.
+	 */
+	public interface Visitor {
+		/**
+		 * _cells are the 4 cells around the edge, counterclockwise when looking
+		 * down the axis (0 for R, 1 for S, 2 for T), starting with the cell on
+		 * the lower side of both other axes. A cell is null if there is no node,
+		 * and the same node can be there twice if it is bigger than the others.
+		 * The edge starts at the corner _r, _s, _t of the lattice of _level (see
+		 * OctHermite.getValue()) and has the size of a node of that level.
+		 * The array of cells is reused after the call.
+		 */
+		public void visitEdge(OctNode[] _cells, int _axis, int _r, int _s,
+				int _t, int _level);
+	}
+
+	// *************************************************************************************
+	// VARIABLES
+	// *************************************************************************************
+
+	private OctNodeIndex index;
+
+	private static final int CELL = 0;
+	private static final int FACE = 1;
+	private static final int EDGE = 2;
+
+	// a cell of the tree: codes, level and position in the index or
+	// OctNodeIndex.EMPTY / INTERNAL
+	private static class Cell {
+		int r, s, t, level, type;
+	}
+
+	// a call of one of the procedures, run by one thread
+	private static class Task {
+		int proc;
+		Cell[] cells;
+		int axis;
+
+		Task(int _proc, Cell[] _cells, int _axis) {
+			proc = _proc;
+			cells = _cells;
+			axis = _axis;
+		}
+	}
+
+	// *************************************************************************************
+	// CONSTRUCTORS
+	// *************************************************************************************
+
+	public OctDualTraversal(OctNodeIndex _index) {
+		index = _index;
+	}
+
+	// *************************************************************************************
+	// METHODS
+	// *************************************************************************************
+
+	/**
+	 * Sends every minimal edge to the visitor.
+	 */
+	public void traverse(final Visitor _visitor) {
+		final ArrayList<Task> tasks = getTasks();
+		OctParallel.run(tasks.size(), 1, new OctParallel.Task() {
+			public void run(int _from, int _to) {
+				OctNode[] nodes = new OctNode[4];
+				for (int i = _from; i < _to; i++) {
+					runTask(tasks.get(i), _visitor, nodes);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Adds a face to the mesh for each minimal edge crossed by the surface,
+	 * made of the vertices of the cells around the edge: a quad, or two
+	 * triangles if _quads is false, and a triangle if one vertex is missing.
+	 * The faces are counterclockwise seen from the empty side. They are added
+	 * in the same order whatever the number of threads.
+	 */
+	public void addFaces(final OctHermite _hermite,
+			final Map<OctNode, OctXYZ> _vertices, OctMesh _mesh,
+			final boolean _quads) {
+		final ArrayList<Task> tasks = getTasks();
+		// the faces of each task
+		final ArrayList<ArrayList<OctMeshFace>> faces = new ArrayList<ArrayList<OctMeshFace>>(
+				tasks.size());
+		for (int i = 0; i < tasks.size(); i++) {
+			faces.add(null);
+		}
+		OctParallel.run(tasks.size(), 1, new OctParallel.Task() {
+			public void run(int _from, int _to) {
+				OctNode[] nodes = new OctNode[4];
+				for (int i = _from; i < _to; i++) {
+					ArrayList<OctMeshFace> list = new ArrayList<OctMeshFace>();
+					runTask(tasks.get(i), new FaceVisitor(_hermite, _vertices,
+							_quads, list), nodes);
+					faces.set(i, list);
+				}
+			}
+		});
+		for (ArrayList<OctMeshFace> list : faces) {
+			_mesh.faceList.addAll(list);
+		}
+	}
+
+	// the faces of the crossed edges, into a list
+	private static class FaceVisitor implements Visitor {
+		OctHermite hermite;
+		Map<OctNode, OctXYZ> vertices;
+		boolean quads;
+		ArrayList<OctMeshFace> faces;
+		OctXYZ[] v = new OctXYZ[4];
+
+		FaceVisitor(OctHermite _hermite, Map<OctNode, OctXYZ> _vertices,
+				boolean _quads, ArrayList<OctMeshFace> _faces) {
+			hermite = _hermite;
+			vertices = _vertices;
+			quads = _quads;
+			faces = _faces;
+		}
+
+		public void visitEdge(OctNode[] _cells, int _axis, int _r, int _s,
+				int _t, int _level) {
+			float v0 = hermite.getValue(_r, _s, _t, _level);
+			float v1 = hermite.getValue(_r + (_axis == 0 ? 1 : 0), _s
+					+ (_axis == 1 ? 1 : 0), _t + (_axis == 2 ? 1 : 0), _level);
+			if (!hermite.isCrossed(v0, v1))
+				return;
+			int count = getVertices(_cells, vertices, !hermite.isInside(v0), v);
+			if (count < 3)
+				return;
+			if (count == 3) {
+				faces.add(new OctMeshFace(v[0], v[1], v[2]));
+			} else if (quads) {
+				faces.add(new OctMeshFace(v[0], v[1], v[2], v[3]));
+			} else {
+				faces.add(new OctMeshFace(v[0], v[1], v[2]));
+				faces.add(new OctMeshFace(v[0], v[2], v[3]));
+			}
+		}
+	}
+
+	// *************************************************************************************
+	// PROCEDURES
+	// *************************************************************************************
+
+	// the calls of the procedures of the first levels, enough for the threads
+	private ArrayList<Task> getTasks() {
+		ArrayList<Task> tasks = new ArrayList<Task>();
+		if (index.size() == 0)
+			return tasks;
+		Cell root = getCell(0, 0, 0, 0);
+		tasks.add(new Task(CELL, new Cell[] { root }, 0));
+		// split the first levels, so that the threads have enough to do
+		int target = OctParallel.getThreadCount() * 16;
+		boolean split = true;
+		while (split && tasks.size() < target) {
+			split = false;
+			ArrayList<Task> next = new ArrayList<Task>();
+			for (Task t : tasks) {
+				if (t.proc == CELL
+						&& t.cells[0].type == OctNodeIndex.INTERNAL) {
+					addCellTasks(t.cells[0], next);
+					split = true;
+				} else {
+					next.add(t);
+				}
+			}
+			tasks.clear();
+			tasks.addAll(next);
+		}
+		return tasks;
+	}
+
+	private void runTask(Task _t, Visitor _visitor, OctNode[] _nodes) {
+		if (_t.proc == CELL)
+			cellProc(_t.cells[0], _visitor, _nodes);
+		else if (_t.proc == FACE)
+			faceProc(_t.cells[0], _t.cells[1], _t.axis, _visitor, _nodes);
+		else
+			edgeProc(_t.cells, _t.axis, _visitor, _nodes);
+	}
+
+	private void cellProc(Cell _c, Visitor _visitor, OctNode[] _nodes) {
+		if (_c.type != OctNodeIndex.INTERNAL)
+			return;
+		ArrayList<Task> tasks = new ArrayList<Task>(26);
+		addCellTasks(_c, tasks);
+		for (Task t : tasks) {
+			if (t.proc == CELL)
+				cellProc(t.cells[0], _visitor, _nodes);
+			else if (t.proc == FACE)
+				faceProc(t.cells[0], t.cells[1], t.axis, _visitor, _nodes);
+			else
+				edgeProc(t.cells, t.axis, _visitor, _nodes);
+		}
+	}
+
+	// the 8 children, the 12 faces and the 6 edges inside an internal cell
+	private void addCellTasks(Cell _c, ArrayList<Task> _tasks) {
+		Cell[] children = new Cell[8];
+		for (int k = 0; k < 8; k++) {
+			children[k] = getChild(_c, k);
+			_tasks.add(new Task(CELL, new Cell[] { children[k] }, 0));
+		}
+		for (int a = 0; a < 3; a++) {
+			int u = (a + 1) % 3;
+			int v = (a + 2) % 3;
+			for (int q = 0; q < 4; q++) {
+				int k = (q & 1) << u | (q >> 1) << v;
+				_tasks.add(new Task(FACE, new Cell[] { children[k],
+						children[k | 1 << a] }, a));
+			}
+			for (int h = 0; h < 2; h++) {
+				Cell[] cells = new Cell[4];
+				for (int q = 0; q < 4; q++) {
+					cells[q] = children[getSideU(q) << u | getSideV(q) << v
+							| h << a];
+				}
+				_tasks.add(new Task(EDGE, cells, a));
+			}
+		}
+	}
+
+	// _c0 is on the lower side of _c1 along the axis
+	private void faceProc(Cell _c0, Cell _c1, int _a, Visitor _visitor,
+			OctNode[] _nodes) {
+		boolean split0 = _c0.type == OctNodeIndex.INTERNAL;
+		boolean split1 = _c1.type == OctNodeIndex.INTERNAL;
+		if (!split0 && !split1)
+			return;
+		int u = (_a + 1) % 3;
+		int v = (_a + 2) % 3;
+		// the 4 faces
+		for (int q = 0; q < 4; q++) {
+			int k = (q & 1) << u | (q >> 1) << v;
+			faceProc(split0 ? getChild(_c0, k | 1 << _a) : _c0,
+					split1 ? getChild(_c1, k) : _c1, _a, _visitor, _nodes);
+		}
+		// the 4 edges on the face, along the 2 other axes
+		for (int d = 0; d < 3; d++) {
+			if (d == _a)
+				continue;
+			int du = (d + 1) % 3;
+			int e = 3 - _a - d;
+			for (int h = 0; h < 2; h++) {
+				Cell[] cells = new Cell[4];
+				for (int q = 0; q < 4; q++) {
+					int sideA = du == _a ? getSideU(q) : getSideV(q);
+					int sideE = du == e ? getSideU(q) : getSideV(q);
+					Cell c = sideA == 0 ? _c0 : _c1;
+					boolean split = sideA == 0 ? split0 : split1;
+					cells[q] = split ? getChild(c, (1 - sideA) << _a
+							| sideE << e | h << d) : c;
+				}
+				edgeProc(cells, d, _visitor, _nodes);
+			}
+		}
+	}
+
+	private void edgeProc(Cell[] _cells, int _a, Visitor _visitor,
+			OctNode[] _nodes) {
+		boolean split = false;
+		for (int q = 0; q < 4; q++) {
+			if (_cells[q].type == OctNodeIndex.INTERNAL)
+				split = true;
+		}
+		int u = (_a + 1) % 3;
+		int v = (_a + 2) % 3;
+		if (split) {
+			for (int h = 0; h < 2; h++) {
+				Cell[] cells = new Cell[4];
+				for (int q = 0; q < 4; q++) {
+					Cell c = _cells[q];
+					cells[q] = c.type == OctNodeIndex.INTERNAL ? getChild(c,
+							(1 - getSideU(q)) << u | (1 - getSideV(q)) << v
+									| h << _a) : c;
+				}
+				edgeProc(cells, _a, _visitor, _nodes);
+			}
+			return;
+		}
+		// the edge of the smallest cell
+		int m = 0;
+		for (int q = 1; q < 4; q++) {
+			if (_cells[q].level > _cells[m].level)
+				m = q;
+		}
+		Cell c = _cells[m];
+		int[] corner = new int[] { c.r, c.s, c.t };
+		corner[u] += 1 - getSideU(m);
+		corner[v] += 1 - getSideV(m);
+		for (int q = 0; q < 4; q++) {
+			_nodes[q] = _cells[q].type >= 0 ? index.getNode(_cells[q].type)
+					: null;
+		}
+		_visitor.visitEdge(_nodes, _a, corner[0], corner[1], corner[2],
+				c.level);
+	}
+
+	// *************************************************************************************
+	// HELPERS
+	// *************************************************************************************
+
+	// vertices of the cells around an edge, in order or reversed, without the
+	// missing ones, the ones that are not numbers and the repeated ones
+	private static int getVertices(OctNode[] _cells,
+			Map<OctNode, OctXYZ> _vertices, boolean _reverse, OctXYZ[] _result) {
+		int count = 0;
+		for (int i = 0; i < 4; i++) {
+			OctNode n = _cells[_reverse ? 3 - i : i];
+			if (n == null)
+				continue;
+			OctXYZ v = _vertices.get(n);
+			if (v == null || Float.isNaN(v.x) || Float.isNaN(v.y)
+					|| Float.isNaN(v.z))
+				continue;
+			boolean repeated = false;
+			for (int j = 0; j < count; j++) {
+				if (_result[j] == v)
+					repeated = true;
+			}
+			if (!repeated)
+				_result[count++] = v;
+		}
+		return count;
+	}
+
+	// sides of the cells around an edge, counterclockwise
+	private static int getSideU(int _q) {
+		return _q == 1 || _q == 2 ? 1 : 0;
+	}
+
+	private static int getSideV(int _q) {
+		return _q >= 2 ? 1 : 0;
+	}
+
+	private Cell getCell(int _r, int _s, int _t, int _level) {
+		Cell c = new Cell();
+		c.r = _r;
+		c.s = _s;
+		c.t = _t;
+		c.level = _level;
+		c.type = index.getCell(_r, _s, _t, _level);
+		return c;
+	}
+
+	// child k: bit 0 for R, 1 for S and 2 for T, as the Morton codes
+	private Cell getChild(Cell _c, int _k) {
+		return getCell(2 * _c.r + (_k & 1), 2 * _c.s + (_k >> 1 & 1), 2
+				* _c.t + (_k >> 2 & 1), _c.level + 1);
+	}
+
+}
@@ -0,0 +1,474 @@
+/**
+ * OCT Octree
+ * A Processing library to create, modify and display Octree structures.
+ * http://www.thomaswegener.ch/OCT
+ *
+ * Based on:
+ * Hanan Samet, Neighbor finding in images represented by octrees
+ * Computer Vision, Graphics, and Image Processing, Volume 46, Issue 3, June 1989, Pages 367-386
+ * http://dx.doi.org/10.1016/0734-189X(89)90038-8.
+ * (http://www.sciencedirect.com/science/article/pii/0734189X89900388)
+ *
+ * Copyright (C) 2015 Thomas Wegener
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ * 
+ * @author      Thomas Wegener
+ * @modified    2015
+ * @version     0.1 (1)
+ */
+
+package oct.polygonization;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import oct.enums.OCT_EDGE;
+import oct.enums.OCT_VERTEX;
+import oct.math.OctFunction;
+import oct.octree.OctMorton;
+import oct.octree.OctNode;
+import oct.octree.OctNodeIndex;
+import oct.octree.OctOctree;
+import oct.octree.OctParallel;
+import oct.octree.OctXYZ;
+import processing.core.PApplet;
+
+/**
+ * Hermite data of an octree: the value of the function at the corners of the
+ * nodes, and the position and normal of the surface where it crosses their
+ * edges. Corners are keyed on the lattice of the deepest level, so that nodes
+ * of any level share them, and edges by their level, first corner and axis.
+ * Everything is computed once, in parallel, and kept until the nodes, the
+ * bounds, the function or the threshold change. Several dual polygonizations
+ * can share one store with setHermite(), so switching from one to the other,
+ * or changing only smooth() or setQEFclip(), doesn't evaluate the function
+ * again. The function is compared by reference: after changing it in place,
+ * call clear() (or OctPoly.invalidate()).
+ */
+public class OctHermite {
+
+	// *************************************************************************************
+	// VARIABLES
+	// *************************************************************************************
+
+	// deepest level that fits in the edge keys
+	public static final int MAX_DEPTH = 18;
+
+	private OctOctree octree;
+
+	// what the data was built for
+	private OctNodeIndex index;
+	private float[] bounds = new float[6];
+	private OctFunction function;
+	private float threshold;
+	private int flip;
+	private boolean close;
+	private float closeValue;
+	private boolean normals = false;
+	private int gradientMode;
+	private int radius;
+
+	// used while building, and for the nodes that are not cached
+	private OctPoly poly;
+	private float x1, y1, z1, x2, y2, z2;
+
+	private int depth = 0;
+	private long[] cornerKeys = new long[0];
+	private float[] cornerValues = new float[0];
+	// crossed edges only: position and normal, 6 floats per edge
+	private long[] edgeKeys = new long[0];
+	private float[] edgeData = new float[0];
+
+	// *************************************************************************************
+	// CONSTRUCTORS
+	// *************************************************************************************
+
+	public OctHermite(OctOctree _octree) {
+		octree = _octree;
+	}
+
+	// *************************************************************************************
+	// GETTERS
+	// *************************************************************************************
+
+	public OctOctree getOctree() {
+		return octree;
+	}
+
+	/**
+	 * Number of corners stored.
+	 */
+	public int getCornerCount() {
+		return cornerKeys.length;
+	}
+
+	/**
+	 * Number of edges crossed by the surface.
+	 */
+	public int getEdgeCount() {
+		return edgeKeys.length;
+	}
+
+	// *************************************************************************************
+	// METHODS
+	// *************************************************************************************
+
+	/**
+	 * Builds the data again if anything it depends on has changed, else does
+	 * nothing. If only the threshold or the flip have changed, the corner
+	 * values are kept and only the edges are built again. The normals are
+	 * estimated with the gradient of _poly (see OctPoly.setGradientMode())
+	 * and a stencil of _radius samples, only if _normals is true.
+	 */
+	public synchronized void update(OctPoly _poly, OctFunction _function,
+			float _threshold, int _flip, boolean _close, float _closeValue,
+			boolean _normals, int _radius) {
+		poly = _poly;
+		OctNodeIndex tempIndex = octree.getIndex();
+		OctXYZ origin = octree.getOrigin();
+		OctXYZ dim = octree.getDimension();
+		if (tempIndex != index || bounds[0] != origin.x
+				|| bounds[1] != origin.y || bounds[2] != origin.z
+				|| bounds[3] != dim.x || bounds[4] != dim.y
+				|| bounds[5] != dim.z || _function != function
+				|| _close != close || (_close && _closeValue != closeValue)) {
+			index = tempIndex;
+			bounds[0] = origin.x;
+			bounds[1] = origin.y;
+			bounds[2] = origin.z;
+			bounds[3] = dim.x;
+			bounds[4] = dim.y;
+			bounds[5] = dim.z;
+			function = _function;
+			close = _close;
+			closeValue = _closeValue;
+			threshold = _threshold;
+			flip = _flip;
+			normals = false;
+			buildCorners();
+			buildEdges();
+		} else if (_threshold != threshold || _flip != flip) {
+			threshold = _threshold;
+			flip = _flip;
+			normals = false;
+			buildEdges();
+		}
+		if (_normals
+				&& (!normals || gradientMode != _poly.getGradientMode() || radius != _radius)) {
+			gradientMode = _poly.getGradientMode();
+			radius = _radius;
+			buildNormals();
+			normals = true;
+		}
+	}
+
+	/**
+	 * Drops the data, the next update() builds it again.
+	 */
+	public synchronized void clear() {
+		index = null;
+		normals = false;
+		cornerKeys = new long[0];
+		cornerValues = new float[0];
+		edgeKeys = new long[0];
+		edgeData = new float[0];
+	}
+
+	/**
+	 * Gets the values at the 8 corners of a node, in the order of
+	 * OCT_VERTEX.getOrdinal().
+	 */
+	public void getValues(OctNode _n, float[] _values) {
+		int l = _n.getLevel();
+		for (OCT_VERTEX v : OCT_VERTEX.getAll()) {
+			int r = _n.getCodeR() + (v.r + 1) / 2;
+			int s = _n.getCodeS() + (v.s + 1) / 2;
+			int t = _n.getCodeT() + (v.t + 1) / 2;
+			_values[v.getOrdinal()] = getValue(r, s, t, l);
+		}
+	}
+
+	/**
+	 * Gets the value at a corner of the lattice of a level: the corner _r, _s,
+	 * _t is the first corner of the node with these codes.
+	 */
+	public float getValue(int _r, int _s, int _t, int _l) {
+		int shift = depth - _l;
+		if (_l <= depth && _r >= 0 && _s >= 0 && _t >= 0
+				&& Math.max(_r, Math.max(_s, _t)) <= 1 << _l) {
+			int i = Arrays.binarySearch(cornerKeys,
+					OctMorton.encode(_r << shift, _s << shift, _t << shift));
+			if (i >= 0)
+				return cornerValues[i];
+		}
+		float grid = 1f / (1 << _l);
+		return compute(_r * grid, _s * grid, _t * grid);
+	}
+
+	/**
+	 * Returns true if the surface passes between two values.
+	 */
+	public boolean isCrossed(float _v0, float _v1) {
+		return isInside(_v0) != isInside(_v1);
+	}
+
+	/**
+	 * Returns true if the value is on the side of the surface that is filled,
+	 * taking flipToggle() into account.
+	 */
+	public boolean isInside(float _v) {
+		return _v * flip > threshold * flip;
+	}
+
+	/**
+	 * Gets the point where the surface crosses an edge of a node, or null if
+	 * it doesn't.
+	 */
+	public OctXYZ getPoint(OctNode _n, OCT_EDGE _e) {
+		float[] data = getCrossing(_n, _e);
+		if (data == null)
+			return null;
+		return new OctXYZ(data[0], data[1], data[2]);
+	}
+
+	/**
+	 * Gets the normal of the surface where it crosses an edge of a node, or
+	 * null if it doesn't or if the normals were not asked in update().
+	 */
+	public OctXYZ getNormal(OctNode _n, OCT_EDGE _e) {
+		if (!normals)
+			return null;
+		float[] data = getCrossing(_n, _e);
+		if (data == null)
+			return null;
+		return new OctXYZ(data[3], data[4], data[5]);
+	}
+
+	// *************************************************************************************
+	// BUILDING
+	// *************************************************************************************
+
+	private void buildCorners() {
+		OctXYZ min = octree.getMin();
+		OctXYZ max = octree.getMax();
+		x1 = min.x;
+		y1 = min.y;
+		z1 = min.z;
+		x2 = max.x;
+		y2 = max.y;
+		z2 = max.z;
+
+		ArrayList<OctNode> tempNodes = new ArrayList<OctNode>();
+		depth = 0;
+		for (OctNode n : octree.nodeList) {
+			if (isCached(n)) {
+				tempNodes.add(n);
+				depth = Math.max(depth, n.getLevel());
+			}
+		}
+
+		// corners, shared by all the levels
+		long[] keys = new long[tempNodes.size() * 8];
+		int count = 0;
+		for (OctNode n : tempNodes) {
+			int shift = depth - n.getLevel();
+			for (OCT_VERTEX v : OCT_VERTEX.getAll()) {
+				keys[count++] = OctMorton.encode(
+						(n.getCodeR() + (v.r + 1) / 2) << shift,
+						(n.getCodeS() + (v.s + 1) / 2) << shift,
+						(n.getCodeT() + (v.t + 1) / 2) << shift);
+			}
+		}
+		cornerKeys = unique(keys, count);
+		cornerValues = new float[cornerKeys.length];
+		final float grid = 1f / (1 << depth);
+		OctParallel.run(cornerKeys.length, 256, new OctParallel.Task() {
+			public void run(int _from, int _to) {
+				for (int i = _from; i < _to; i++) {
+					long key = cornerKeys[i];
+					cornerValues[i] = compute(OctMorton.decodeR(key) * grid,
+							OctMorton.decodeS(key) * grid,
+							OctMorton.decodeT(key) * grid);
+				}
+			}
+		});
+	}
+
+	// edges crossed by the surface
+	private void buildEdges() {
+		ArrayList<OctNode> tempNodes = new ArrayList<OctNode>();
+		for (OctNode n : octree.nodeList) {
+			if (isCached(n))
+				tempNodes.add(n);
+		}
+		float[] values = new float[8];
+		long[] keys = new long[tempNodes.size() * 12];
+		int count = 0;
+		for (OctNode n : tempNodes) {
+			getValues(n, values);
+			for (OCT_EDGE e : OCT_EDGE.values()) {
+				if (isCrossed(values[e.getV0().getOrdinal()],
+						values[e.getV1().getOrdinal()]))
+					keys[count++] = getEdgeKey(n, e);
+			}
+		}
+		edgeKeys = unique(keys, count);
+		edgeData = new float[edgeKeys.length * 6];
+		OctParallel.run(edgeKeys.length, 256, new OctParallel.Task() {
+			public void run(int _from, int _to) {
+				for (int i = _from; i < _to; i++) {
+					computePoint(edgeKeys[i], edgeData, i * 6);
+				}
+			}
+		});
+	}
+
+	private void buildNormals() {
+		OctParallel.run(edgeKeys.length, 64, new OctParallel.Task() {
+			public void run(int _from, int _to) {
+				for (int i = _from; i < _to; i++) {
+					computeNormal(edgeData, i * 6);
+				}
+			}
+		});
+	}
+
+	// *************************************************************************************
+	// HELPERS
+	// *************************************************************************************
+
+	// nodes whose edges have a key, in bounds and not deeper than MAX_DEPTH
+	static boolean isCached(OctNode _n) {
+		int l = _n.getLevel();
+		int size = 1 << l;
+		return l <= MAX_DEPTH && _n.getCodeR() >= 0 && _n.getCodeR() < size
+				&& _n.getCodeS() >= 0 && _n.getCodeS() < size
+				&& _n.getCodeT() >= 0 && _n.getCodeT() < size;
+	}
+
+	// sorted keys without duplicates
+	private static long[] unique(long[] _keys, int _count) {
+		Arrays.sort(_keys, 0, _count);
+		int unique = 0;
+		for (int i = 0; i < _count; i++) {
+			if (i == 0 || _keys[i] != _keys[i - 1])
+				_keys[unique++] = _keys[i];
+		}
+		return Arrays.copyOf(_keys, unique);
+	}
+
+	// value at a RST position
+	private float compute(float _r, float _s, float _t) {
+		OctXYZ dim = octree.getDimension();
+		OctXYZ origin = octree.getOrigin();
+		float x = _r * dim.x + origin.x;
+		float y = _s * dim.y + origin.y;
+		float z = _t * dim.z + origin.z;
+		if (close
+				&& (x == x1 || x == x2 || y == y1 || y == y2 || z == z1 || z == z2))
+			return closeValue;
+		return function.compute(x, y, z);
+	}
+
+	// axis of an edge, 0 for R, 1 for S and 2 for T
+	private static int getAxis(OCT_EDGE _e) {
+		return _e.r == 0 ? 0 : (_e.s == 0 ? 1 : 2);
+	}
+
+	// first corner of an edge, same as its last corner along the axis
+	private static int getCorner(int _code, int _e, boolean _axis) {
+		return _axis ? _code : _code + (_e + 1) / 2;
+	}
+
+	// level, first corner and axis of an edge, the same for all the nodes
+	// sharing it. Also used by OctMarchingCubes.
+	static long getEdgeKey(OctNode _n, OCT_EDGE _e) {
+		int axis = getAxis(_e);
+		return getEdgeKey(getCorner(_n.getCodeR(), _e.r, axis == 0),
+				getCorner(_n.getCodeS(), _e.s, axis == 1),
+				getCorner(_n.getCodeT(), _e.t, axis == 2), _n.getLevel(), axis);
+	}
+
+	// key of the edge from a corner of the lattice of a level
+	static long getEdgeKey(int _r, int _s, int _t, int _level, int _axis) {
+		return (OctMorton.encode(_r, _s, _t) << 7) | (_level << 2) | _axis;
+	}
+
+	private float[] getCrossing(OctNode _n, OCT_EDGE _e) {
+		if (isCached(_n)) {
+			int i = Arrays.binarySearch(edgeKeys, getEdgeKey(_n, _e));
+			if (i < 0)
+				return null;
+			return Arrays.copyOfRange(edgeData, i * 6, i * 6 + 6);
+		}
+		// not stored, computed again
+		int axis = getAxis(_e);
+		float[] data = new float[6];
+		if (!computePoint(getCorner(_n.getCodeR(), _e.r, axis == 0),
+				getCorner(_n.getCodeS(), _e.s, axis == 1),
+				getCorner(_n.getCodeT(), _e.t, axis == 2), _n.getLevel(),
+				axis, data, 0))
+			return null;
+		if (normals)
+			computeNormal(data, 0);
+		return data;
+	}
+
+	private boolean computePoint(long _key, float[] _data, int _i) {
+		long code = _key >>> 7;
+		return computePoint(OctMorton.decodeR(code), OctMorton.decodeS(code),
+				OctMorton.decodeT(code), (int) ((_key >>> 2) & 31),
+				(int) (_key & 3), _data, _i);
+	}
+
+	// interpolated position of the crossing, as the polygonizations did it
+	private boolean computePoint(int _r, int _s, int _t, int _l, int _axis,
+			float[] _data, int _i) {
+		float v0 = getValue(_r, _s, _t, _l);
+		float v1 = getValue(_r + (_axis == 0 ? 1 : 0),
+				_s + (_axis == 1 ? 1 : 0), _t + (_axis == 2 ? 1 : 0), _l);
+		if (!isCrossed(v0, v1))
+			return false;
+		float adapt = PApplet.map(threshold, v0, v1, -1, 1);
+		float size = 1f / (1 << _l);
+		float pr = _r * size;
+		float ps = _s * size;
+		float pt = _t * size;
+		// the center of the edge, moved along it
+		if (_axis == 0)
+			pr = adapt * size / 2 + (float) (_r + 0.5) * size;
+		else if (_axis == 1)
+			ps = adapt * size / 2 + (float) (_s + 0.5) * size;
+		else
+			pt = adapt * size / 2 + (float) (_t + 0.5) * size;
+		OctXYZ dim = octree.getDimension();
+		OctXYZ origin = octree.getOrigin();
+		_data[_i] = pr * dim.x + origin.x;
+		_data[_i + 1] = ps * dim.y + origin.y;
+		_data[_i + 2] = pt * dim.z + origin.z;
+		return true;
+	}
+
+	private void computeNormal(float[] _data, int _i) {
+		OctXYZ g = poly.estimateGradient(function, octree, new OctXYZ(
+				_data[_i], _data[_i + 1], _data[_i + 2]), radius);
+		_data[_i + 3] = g.x;
+		_data[_i + 4] = g.y;
+		_data[_i + 5] = g.z;
+	}
+
+}
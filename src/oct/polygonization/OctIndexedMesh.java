@@ -0,0 +1,297 @@
+/**
+ * OCT Octree
+ * A Processing library to create, modify and display Octree structures.
+ * http://www.thomaswegener.ch/OCT
+ *
+ * Based on:
+ * Hanan Samet, Neighbor finding in images represented by octrees
+ * Computer Vision, Graphics, and Image Processing, Volume 46, Issue 3, June 1989, Pages 367-386
+ * http://dx.doi.org/10.1016/0734-189X(89)90038-8.
+ * (http://www.sciencedirect.com/science/article/pii/0734189X89900388)
+ *
+ * Copyright (C) 2015 Thomas Wegener
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ * 
+ * @author      Thomas Wegener
+ * @modified    2015
+ * @version     0.1 (1)
+ */
+
+package oct.polygonization;
+
+import java.util.Arrays;
+
+import oct.octree.OctXYZ;
+import processing.core.PApplet;
+
+/**
+ * Mesh of triangles sharing their vertices: the positions are stored once in
+ * a flat array (XYZ) and the triangles as 3 indices into it. Vertices with the
+ * same position are welded while the mesh is built. With a weld tolerance,
+ * positions rounded to the same multiple of the tolerance are welded.
+ */
+public class OctIndexedMesh {
+
+	private float[] positions = new float[3 * 64];
+	private int[] indices = new int[3 * 64];
+	private float[] normals;
+	private int vertexCount = 0;
+	private int indexCount = 0;
+
+	// welding, open addressing table of vertex indices
+	private float weldTolerance;
+	private int[] weldKeys = new int[3 * 64];
+	private int[] table = new int[128];
+
+	public OctIndexedMesh() {
+		this(0);
+	}
+
+	public OctIndexedMesh(float _weldTolerance) {
+		weldTolerance = _weldTolerance;
+		Arrays.fill(table, -1);
+	}
+
+	// *************************************************************************************
+	// BUILD
+	// *************************************************************************************
+
+	/**
+	 * Adds a vertex, or finds the welded vertex at the same position, and
+	 * returns its index.
+	 */
+	public int addVertex(float _x, float _y, float _z) {
+		int kx = getWeldKey(_x);
+		int ky = getWeldKey(_y);
+		int kz = getWeldKey(_z);
+		int h = hash(kx, ky, kz) & (table.length - 1);
+		while (table[h] != -1) {
+			int v = table[h];
+			if (weldKeys[v * 3] == kx && weldKeys[v * 3 + 1] == ky
+					&& weldKeys[v * 3 + 2] == kz)
+				return v;
+			h = (h + 1) & (table.length - 1);
+		}
+		if (vertexCount * 3 == positions.length) {
+			positions = Arrays.copyOf(positions,
+					Math.max(3 * 64, positions.length * 2));
+			weldKeys = Arrays.copyOf(weldKeys, positions.length);
+		}
+		int v = vertexCount++;
+		positions[v * 3] = _x;
+		positions[v * 3 + 1] = _y;
+		positions[v * 3 + 2] = _z;
+		weldKeys[v * 3] = kx;
+		weldKeys[v * 3 + 1] = ky;
+		weldKeys[v * 3 + 2] = kz;
+		table[h] = v;
+		if (vertexCount * 2 > table.length)
+			rehash();
+		normals = null;
+		return v;
+	}
+
+	public int addVertex(OctXYZ _v) {
+		return addVertex(_v.x, _v.y, _v.z);
+	}
+
+	/**
+	 * Adds a triangle from the indices of its vertices. Degenerated triangles
+	 * (two same vertices, after welding) are skipped.
+	 */
+	public void addTriangle(int _v0, int _v1, int _v2) {
+		if (_v0 == _v1 || _v1 == _v2 || _v2 == _v0)
+			return;
+		if (indexCount + 3 > indices.length)
+			indices = Arrays.copyOf(indices,
+					Math.max(3 * 64, indices.length * 2));
+		indices[indexCount++] = _v0;
+		indices[indexCount++] = _v1;
+		indices[indexCount++] = _v2;
+		normals = null;
+	}
+
+	public void addTriangle(OctXYZ _v0, OctXYZ _v1, OctXYZ _v2) {
+		addTriangle(addVertex(_v0), addVertex(_v1), addVertex(_v2));
+	}
+
+	/**
+	 * Adds a quad as two triangles (v0, v1, v2) and (v0, v2, v3).
+	 */
+	public void addQuad(int _v0, int _v1, int _v2, int _v3) {
+		addTriangle(_v0, _v1, _v2);
+		addTriangle(_v0, _v2, _v3);
+	}
+
+	public void addQuad(OctXYZ _v0, OctXYZ _v1, OctXYZ _v2, OctXYZ _v3) {
+		addQuad(addVertex(_v0), addVertex(_v1), addVertex(_v2), addVertex(_v3));
+	}
+
+	/**
+	 * Adds a face of an OctMesh, as a triangle or a quad depending on its
+	 * type.
+	 */
+	public void addFace(OctMeshFace _f) {
+		if (_f.type == 3)
+			addTriangle(_f.v0, _f.v1, _f.v2);
+		else
+			addQuad(_f.v0, _f.v1, _f.v2, _f.v3);
+	}
+
+	/**
+	 * Computes the normals of the vertices, as the sum of the normals of the
+	 * triangles around them weighted by their area, normalized.
+	 */
+	public void computeNormals() {
+		float[] n = new float[vertexCount * 3];
+		for (int i = 0; i < indexCount; i += 3) {
+			int a = indices[i] * 3;
+			int b = indices[i + 1] * 3;
+			int c = indices[i + 2] * 3;
+			float ux = positions[b] - positions[a];
+			float uy = positions[b + 1] - positions[a + 1];
+			float uz = positions[b + 2] - positions[a + 2];
+			float vx = positions[c] - positions[a];
+			float vy = positions[c + 1] - positions[a + 1];
+			float vz = positions[c + 2] - positions[a + 2];
+			// cross product, twice the area of the triangle
+			float nx = uy * vz - uz * vy;
+			float ny = uz * vx - ux * vz;
+			float nz = ux * vy - uy * vx;
+			for (int v : new int[] { a, b, c }) {
+				n[v] += nx;
+				n[v + 1] += ny;
+				n[v + 2] += nz;
+			}
+		}
+		for (int i = 0; i < n.length; i += 3) {
+			float l = (float) Math.sqrt(n[i] * n[i] + n[i + 1] * n[i + 1]
+					+ n[i + 2] * n[i + 2]);
+			if (l > 0) {
+				n[i] /= l;
+				n[i + 1] /= l;
+				n[i + 2] /= l;
+			}
+		}
+		normals = n;
+	}
+
+	/**
+	 * Sets the normals of the vertices (XYZ, one per vertex).
+	 */
+	public void setNormals(float[] _normals) {
+		if (_normals != null && _normals.length != vertexCount * 3) {
+			PApplet.println("ERROR in setNormals(): one normal per vertex expected. Normals not changed.");
+			return;
+		}
+		normals = _normals;
+	}
+
+	// *************************************************************************************
+	// GET
+	// *************************************************************************************
+
+	public int getVertexCount() {
+		return vertexCount;
+	}
+
+	public int getTriangleCount() {
+		return indexCount / 3;
+	}
+
+	/**
+	 * Gets a copy of the positions of the vertices, 3 floats per vertex.
+	 */
+	public float[] getPositions() {
+		return Arrays.copyOf(positions, vertexCount * 3);
+	}
+
+	/**
+	 * Gets a copy of the triangles, 3 vertex indices per triangle.
+	 */
+	public int[] getIndices() {
+		return Arrays.copyOf(indices, indexCount);
+	}
+
+	/**
+	 * Gets the normals of the vertices, or null if they were not computed or
+	 * set, or if vertices were added since.
+	 */
+	public float[] getNormals() {
+		return normals;
+	}
+
+	public float getWeldTolerance() {
+		return weldTolerance;
+	}
+
+	// *************************************************************************************
+	// EXPORT
+	// *************************************************************************************
+
+	/**
+	 * Writes the triangles to a binary STL file. Returns false if the file
+	 * could not be written.
+	 */
+	public boolean exportSTL(String _path) {
+		return OctMeshWriter.export(new OctSTLWriter(), this, _path);
+	}
+
+	/**
+	 * Writes the vertices and triangles to a binary PLY file.
+	 */
+	public boolean exportPLY(String _path) {
+		return OctMeshWriter.export(new OctPLYWriter(), this, _path);
+	}
+
+	/**
+	 * Writes the vertices, normals (if any) and triangles to an OBJ file.
+	 */
+	public boolean exportOBJ(String _path) {
+		return OctMeshWriter.export(new OctOBJWriter(), this, _path);
+	}
+
+	// *************************************************************************************
+	// PRIVATE
+	// *************************************************************************************
+
+	private int getWeldKey(float _v) {
+		if (weldTolerance > 0)
+			return Math.round(_v / weldTolerance);
+		// same key for 0 and -0
+		return Float.floatToIntBits(_v + 0f);
+	}
+
+	private static int hash(int _x, int _y, int _z) {
+		int h = _x * 73856093 ^ _y * 19349663 ^ _z * 83492791;
+		return h ^ (h >>> 16);
+	}
+
+	private void rehash() {
+		table = new int[table.length * 2];
+		Arrays.fill(table, -1);
+		for (int v = 0; v < vertexCount; v++) {
+			int h = hash(weldKeys[v * 3], weldKeys[v * 3 + 1],
+					weldKeys[v * 3 + 2]) & (table.length - 1);
+			while (table[h] != -1) {
+				h = (h + 1) & (table.length - 1);
+			}
+			table[h] = v;
+		}
+	}
+
+}
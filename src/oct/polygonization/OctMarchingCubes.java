@@ -1,10 +1,21 @@
 package oct.polygonization;
 
 import static oct.utils.OctTables.marchingCubesLUT;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
 import oct.enums.OCT_EDGE;
+import oct.enums.OCT_FACE;
 import oct.enums.OCT_VERTEX;
 import oct.octree.OctNode;
+import oct.octree.OctMorton;
+import oct.octree.OctNodeIndex;
 import oct.octree.OctOctree;
+import oct.octree.OctParallel;
 import oct.octree.OctRST;
 import oct.octree.OctXYZ;
 import oct.math.OctFunction;
@@ -18,18 +29,28 @@ public class OctMarchingCubes extends OctPoly {
 
 	private OctFunction myFunction;
 	private float threshold = 1;
-	private OctMeshFace face;
-	private OctRST[] tempVertex;
-	
-	private float[] valueAt = new float[8];
-	private float nodeSizeX;
-	private float nodeSizeY;
-	private float nodeSizeZ;
+
+	// vertices of the last setup(), one per crossed edge, and triangles as 3
+	// indices into them
+	private float[] vertices = new float[0];
+	private int[] indices = new int[0];
 
 	private int flip = -1;
 	private int close = -1;
 	private float adaptMultiplier = 1;
 	private float closeValue = 1;
+
+	// transition mode, see setTransitions()
+	private boolean transitions = false;
+	// the indexed nodes, during setup() in transition mode
+	private OctNodeIndex index;
+
+	// a setup in steps: the surface, the nodes and the bounds of the octree
+	private Surface stepSurface;
+	private OctNode[] stepNodes;
+	private float[] stepBounds;
+	// nodes per step
+	private static final int STEP_SIZE = 256;
 	
 	// //////////////////////////////////////////////////////////
 	// CREATOR
@@ -80,108 +101,926 @@ public class OctMarchingCubes extends OctPoly {
 		adaptMultiplier = _value;
 	}
 	
+	public OctMesh getMesh() {
+		return octMesh;
+	}
+
+	/**
+	 * If true, the nodes next to bigger nodes are meshed without cracks: the
+	 * corners of the small nodes on the edges and faces of a bigger node take
+	 * values interpolated from its corners, their crossings on its edges are
+	 * the ones of the bigger node, and their crossings inside its faces are
+	 * moved onto its triangles, which are split at them. Needs neighbors that
+	 * differ by one level at most, see algConstrain(1), and nodes on both
+	 * sides of the surface (_below and _above of algGenerateByCorners()).
+	 * Same mesh as without transitions if all the nodes have the same level.
+	 */
+	public void setTransitions(boolean _transitions) {
+		transitions = _transitions;
+	}
+
+	public boolean hasTransitions() {
+		return transitions;
+	}
+
 	public void setup() {
+		octMesh.invalidate();
+		octMesh.faceList.clear();
+		Surface surface = new Surface(threshold, octMesh);
+		polygonize(new Surface[] { surface });
+		vertices = surface.vertices;
+		indices = surface.indices;
+	}
+
+	/**
+	 * Polygonizes the surfaces of several thresholds in one pass over the
+	 * nodes, and returns one mesh per threshold in their order. Each node
+	 * samples its corners once, and is only polygonized for the thresholds
+	 * between its smallest and largest values. The threshold is not changed,
+	 * getMesh(), getVertices() and getIndices() give the surface of the last
+	 * one.
+	 */
+	public OctMesh[] setup(float[] _thresholds) {
+		OctMesh[] meshes = new OctMesh[_thresholds.length];
+		if (_thresholds.length == 0)
+			return meshes;
+		Surface[] surfaces = new Surface[_thresholds.length];
+		for (int i = 0; i < surfaces.length; i++) {
+			surfaces[i] = new Surface(_thresholds[i], new OctMesh(p5));
+			meshes[i] = surfaces[i].mesh;
+		}
+		polygonize(surfaces);
+		Surface last = surfaces[surfaces.length - 1];
+		octMesh = last.mesh;
+		vertices = last.vertices;
+		indices = last.indices;
+		return meshes;
+	}
+
+	private void polygonize(Surface[] _surfaces) {
+		resetSteps();
+		final float[] bounds = getBounds();
+
+		// sorted by threshold, to find the ones crossing a node
+		final Surface[] surfaces = _surfaces.clone();
+		Arrays.sort(surfaces, new Comparator<Surface>() {
+			public int compare(Surface _a, Surface _b) {
+				return Float.compare(_a.threshold, _b.threshold);
+			}
+		});
+		final float[] thresholds = new float[surfaces.length];
+		for (int i = 0; i < surfaces.length; i++) {
+			thresholds[i] = surfaces[i].threshold;
+		}
+
+		// corner values of the small nodes next to bigger ones
+		index = null;
+		if (transitions) {
+			index = myOctree.getIndex();
+			for (Surface s : surfaces) {
+				s.conforming = getConformingValues(bounds, s);
+			}
+		}
 
+		// chunks of nodes in Morton order, each one with its own buffers
+		final OctNode[] nodes = getNodes();
+		final int chunks = Math.max(1, Math.min(
+				OctParallel.getThreadCount() * 4, nodes.length / 256));
+		for (Surface s : surfaces) {
+			s.buffers = new EdgeBuffer[chunks];
+		}
+		OctParallel.run(chunks, 1, new OctParallel.Task() {
+			public void run(int _from, int _to) {
+				float[] values = new float[8];
+				float[] conformed = new float[8];
+				for (int c = _from; c < _to; c++) {
+					for (Surface s : surfaces) {
+						s.buffers[c] = new EdgeBuffer();
+					}
+					int from = (int) ((long) nodes.length * c / chunks);
+					int to = (int) ((long) nodes.length * (c + 1) / chunks);
+					for (int i = from; i < to; i++) {
+						polygonize(nodes[i], bounds, values, conformed,
+								surfaces, thresholds, c);
+					}
+				}
+			}
+		});
+		for (Surface s : surfaces) {
+			merge(s, chunks);
+		}
+		index = null;
+	}
+
+	// the vertices and triangles of a surface from the buffers of the chunks,
+	// and its faces
+	private void merge(final Surface _surface, int _chunks) {
+		final EdgeBuffer[] buffers = _surface.buffers;
+
+		// every edge crossed by the surface once, sorted by key
+		int size = 0;
+		int loose = 0;
+		final int[] starts = new int[_chunks];
+		final int[] looseStarts = new int[_chunks];
+		for (int c = 0; c < _chunks; c++) {
+			starts[c] = size;
+			looseStarts[c] = loose;
+			size += buffers[c].size;
+			loose += buffers[c].looseSize / 3;
+		}
+		long[] keys = new long[size];
+		size = 0;
+		for (EdgeBuffer b : buffers) {
+			for (int i = 0; i < b.size; i++) {
+				if (b.keys[i] >= 0)
+					keys[size++] = b.keys[i];
+			}
+		}
+		final long[] edges = unique(keys, size);
+
+		// triangle indices, the loose vertices after the edges
+		final int[] tempIndices = new int[starts[_chunks - 1]
+				+ buffers[_chunks - 1].size];
+		final float[] edgeValues = new float[edges.length * 2];
+		OctParallel.run(_chunks, 1, new OctParallel.Task() {
+			public void run(int _from, int _to) {
+				for (int c = _from; c < _to; c++) {
+					EdgeBuffer b = buffers[c];
+					int l = edges.length + looseStarts[c];
+					for (int i = 0; i < b.size; i++) {
+						if (b.keys[i] < 0) {
+							tempIndices[starts[c] + i] = l++;
+						} else {
+							int e = Arrays.binarySearch(edges, b.keys[i]);
+							tempIndices[starts[c] + i] = e;
+							edgeValues[e * 2] = b.values[i * 2];
+							edgeValues[e * 2 + 1] = b.values[i * 2 + 1];
+						}
+					}
+				}
+			}
+		});
+
+		// one interpolation per edge
+		final float[] tempVertices = new float[(edges.length + loose) * 3];
+		OctParallel.run(edges.length, 1024, new OctParallel.Task() {
+			public void run(int _from, int _to) {
+				for (int i = _from; i < _to; i++) {
+					OctXYZ p = getPosition(edges[i], edgeValues[i * 2],
+							edgeValues[i * 2 + 1], _surface.threshold).toXYZ(
+							myOctree);
+					tempVertices[i * 3] = p.x;
+					tempVertices[i * 3 + 1] = p.y;
+					tempVertices[i * 3 + 2] = p.z;
+				}
+			}
+		});
+		for (int c = 0; c < _chunks; c++) {
+			System.arraycopy(buffers[c].loose, 0, tempVertices,
+					(edges.length + looseStarts[c]) * 3, buffers[c].looseSize);
+		}
+		snap(edges, buffers, tempVertices);
+		_surface.vertices = tempVertices;
+		_surface.indices = tempIndices;
+		_surface.buffers = null;
+		_surface.conforming = null;
+
+		// the faces share the vertices of their edges
+		OctXYZ[] points = new OctXYZ[tempVertices.length / 3];
+		for (int i = 0; i < points.length; i++) {
+			points[i] = new OctXYZ(tempVertices[i * 3],
+					tempVertices[i * 3 + 1], tempVertices[i * 3 + 2]);
+		}
+		for (int i = 0; i < tempIndices.length; i += 3) {
+			_surface.mesh.faceList.add(new OctMeshFace(points[tempIndices[i]],
+					points[tempIndices[i + 1]], points[tempIndices[i + 2]]));
+		}
+	}
+
+	// the nodes in chunks, a step each
+	protected int beginSteps() {
+		octMesh.invalidate();
+		octMesh.faceList.clear();
+		stepBounds = getBounds();
+		stepSurface = new Surface(threshold, octMesh);
+		index = null;
+		if (transitions) {
+			index = myOctree.getIndex();
+			stepSurface.conforming = getConformingValues(stepBounds,
+					stepSurface);
+		}
+		stepNodes = getNodes();
+		stepSurface.buffers = new EdgeBuffer[Math.max(1,
+				(stepNodes.length + STEP_SIZE - 1) / STEP_SIZE)];
+		return stepSurface.buffers.length;
+	}
+
+	// the triangles of a chunk, shown until the merge with their own vertices
+	// and without the moves of the transitions
+	protected void doStep(int _step) {
+		EdgeBuffer buffer = new EdgeBuffer();
+		stepSurface.buffers[_step] = buffer;
+		Surface[] surfaces = new Surface[] { stepSurface };
+		float[] thresholds = new float[] { stepSurface.threshold };
+		float[] values = new float[8];
+		float[] conformed = new float[8];
+		int to = Math.min(stepNodes.length, (_step + 1) * STEP_SIZE);
+		for (int i = _step * STEP_SIZE; i < to; i++) {
+			polygonize(stepNodes[i], stepBounds, values, conformed, surfaces,
+					thresholds, _step);
+		}
+		OctXYZ[] v = new OctXYZ[3];
+		int l = 0;
+		for (int i = 0; i < buffer.size; i++) {
+			if (buffer.keys[i] < 0) {
+				v[i % 3] = new OctXYZ(buffer.loose[l], buffer.loose[l + 1],
+						buffer.loose[l + 2]);
+				l += 3;
+			} else {
+				v[i % 3] = getPosition(buffer.keys[i], buffer.values[i * 2],
+						buffer.values[i * 2 + 1], stepSurface.threshold)
+						.toXYZ(myOctree);
+			}
+			if (i % 3 == 2)
+				stepSurface.mesh.faceList.add(new OctMeshFace(v[0], v[1], v[2]));
+		}
+	}
+
+	// the faces of the steps are replaced by the ones of the merge
+	protected void endSteps() {
+		stepSurface.mesh.faceList.clear();
+		merge(stepSurface, stepSurface.buffers.length);
+		// same number of faces, the retained shape would not be built again
+		stepSurface.mesh.invalidate();
+		vertices = stepSurface.vertices;
+		indices = stepSurface.indices;
+		stepSurface = null;
+		stepNodes = null;
+		stepBounds = null;
+		index = null;
+	}
+
+	// the corners of the octree, for sample()
+	private float[] getBounds() {
 		OctXYZ temp = myOctree.getOrigin().add(myOctree.getDimension());
-		float x1 = myOctree.getOrigin().x;
-		float y1 = myOctree.getOrigin().y;
-		float z1 = myOctree.getOrigin().z;
-		float x2 = temp.x;
-		float y2 = temp.y;
-		float z2 = temp.z;
-		
-		for (OctNode tempNode : myOctree.nodeList) {
-
-			// could be pre-computed, since they are necessary anyway to include
-			// or not the node
+		return new float[] { myOctree.getOrigin().x, myOctree.getOrigin().y,
+				myOctree.getOrigin().z, temp.x, temp.y, temp.z };
+	}
+
+	/**
+	 * Gets the vertices of the last setup(), as XYZ coordinates, one per edge
+	 * crossed by the surface. Don't modify the array.
+	 */
+	public float[] getVertices() {
+		return vertices;
+	}
+
+	/**
+	 * Gets the triangles of the last setup(), as 3 indices into getVertices()
+	 * each, in the Morton order of the nodes. Don't modify the array.
+	 */
+	public int[] getIndices() {
+		return indices;
+	}
+
+	/**
+	 * Builds the indexed mesh from the shared vertices. Vertices at the same
+	 * position (surface through a corner) are welded.
+	 */
+	public OctIndexedMesh getIndexedMesh() {
+		OctIndexedMesh tempMesh = new OctIndexedMesh();
+		int[] map = new int[vertices.length / 3];
+		for (int i = 0; i < map.length; i++) {
+			map[i] = tempMesh.addVertex(vertices[i * 3], vertices[i * 3 + 1],
+					vertices[i * 3 + 2]);
+		}
+		for (int i = 0; i < indices.length; i += 3) {
+			tempMesh.addTriangle(map[indices[i]], map[indices[i + 1]],
+					map[indices[i + 2]]);
+		}
+		return tempMesh;
+	}
+
+	// the nodes of the index, in Morton order, then the out of bounds ones
+	private OctNode[] getNodes() {
+		OctNodeIndex index = myOctree.getIndex();
+		ArrayList<OctNode> outside = new ArrayList<OctNode>();
+		if (index.size() != myOctree.nodeList.size()) {
+			for (OctNode n : myOctree.nodeList) {
+				if (index.find(n) < 0)
+					outside.add(n);
+			}
+		}
+		OctNode[] nodes = new OctNode[index.size() + outside.size()];
+		for (int i = 0; i < index.size(); i++) {
+			nodes[i] = index.getNode(i);
+		}
+		for (int i = 0; i < outside.size(); i++) {
+			nodes[index.size() + i] = outside.get(i);
+		}
+		return nodes;
+	}
+
+	// the triangles of one node for each surface, as the keys of their edges.
+	// The corners are sampled once, the surfaces are sorted by threshold and
+	// the ones outside the values of the corners are skipped. Only writes to
+	// its arguments, so that the nodes can be done by several threads.
+	private void polygonize(OctNode _n, float[] _bounds, float[] _values,
+			float[] _conformed, Surface[] _surfaces, float[] _thresholds,
+			int _chunk) {
+		float min = Float.MAX_VALUE;
+		float max = -Float.MAX_VALUE;
+		for (OCT_VERTEX v : OCT_VERTEX.getAll()) {
+			float value = sample(_n.getVertex(v).toXYZ(myOctree), _bounds);
+			_values[v.getOrdinal()] = value;
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+		}
+
+		boolean cached = OctHermite.isCached(_n);
+		if (index != null && cached) {
+			// the conforming values can be outside, no surface skipped
+			for (Surface s : _surfaces) {
+				conform(_n, _values, _conformed, s.conforming);
+				polygonizeTransitions(_n, _conformed, _bounds,
+						s.buffers[_chunk], s);
+			}
+			return;
+		}
+
+		// first threshold not below the smallest value
+		int from = Arrays.binarySearch(_thresholds, min);
+		if (from < 0)
+			from = -from - 1;
+		while (from > 0 && _thresholds[from - 1] == min)
+			from--;
+		for (int k = from; k < _surfaces.length && _thresholds[k] <= max; k++) {
+			Surface s = _surfaces[k];
+			EdgeBuffer buffer = s.buffers[_chunk];
+			int isoCase = getCase(_values, s.threshold);
+			int j = 0;
+			while (marchingCubesLUT[isoCase][j] >= 0) {
+				for (int i = 0; i < 3; i++) {
+					OCT_EDGE e = OCT_EDGE.get(marchingCubesLUT[isoCase][j + i]);
+					float v0 = _values[e.getV0().ordinal()];
+					float v1 = _values[e.getV1().ordinal()];
+					if (cached) {
+						buffer.add(OctHermite.getEdgeKey(_n, e), v0, v1);
+					} else {
+						// no key, only used by this node
+						buffer.addLoose(getVertex(_n, e, v0, v1, s.threshold));
+					}
+				}
+				j = j + 3;
+			}
+		}
+	}
+
+	// the vertex on the edge of a node
+	private OctXYZ getVertex(OctNode _n, OCT_EDGE _e, float _v0, float _v1,
+			float _threshold) {
+		float nodeSize = 1f / (1 << _n.getLevel());
+		float adapt = PApplet.map(_threshold, _v0, _v1, -nodeSize / 2,
+				nodeSize / 2);
+
+		// 1 position inside the node
+		OctRST vertex = new OctRST((_e.r) * nodeSize / 2, (_e.s) * nodeSize
+				/ 2, (_e.t) * nodeSize / 2);
+
+		// 2 smooth on the edge
+		if (_e.r == 0)
+			vertex.r += adapt * adaptMultiplier;
+		if (_e.s == 0)
+			vertex.s += adapt * adaptMultiplier;
+		if (_e.t == 0)
+			vertex.t += adapt * adaptMultiplier;
+
+		// 3 position inside the octree
+		vertex.addSelf((float) (_n.getCodeR() + 0.5) * nodeSize,
+				(float) (_n.getCodeS() + 0.5) * nodeSize,
+				(float) (_n.getCodeT() + 0.5) * nodeSize);
+		return vertex.toXYZ(myOctree);
+	}
+
+	// position of the vertex of an edge key, same as getVertex() from any of
+	// the nodes around the edge
+	private OctRST getPosition(long _key, float _v0, float _v1,
+			float _threshold) {
+		float nodeSize = 1f / (1 << ((_key >>> 2) & 31));
+		int axis = (int) (_key & 3);
+		long code = _key >>> 7;
+		float adapt = PApplet.map(_threshold, _v0, _v1, -nodeSize / 2,
+				nodeSize / 2) * adaptMultiplier;
+		int r = OctMorton.decodeR(code);
+		int s = OctMorton.decodeS(code);
+		int t = OctMorton.decodeT(code);
+		return new OctRST(axis == 0 ? adapt + (float) (r + 0.5) * nodeSize : r
+				* nodeSize, axis == 1 ? adapt + (float) (s + 0.5) * nodeSize
+				: s * nodeSize, axis == 2 ? adapt + (float) (t + 0.5)
+				* nodeSize : t * nodeSize);
+	}
+
+	// sorted keys without duplicates
+	private static long[] unique(long[] _keys, int _count) {
+		Arrays.sort(_keys, 0, _count);
+		int unique = 0;
+		for (int i = 0; i < _count; i++) {
+			if (i == 0 || _keys[i] != _keys[i - 1])
+				_keys[unique++] = _keys[i];
+		}
+		return Arrays.copyOf(_keys, unique);
+	}
+
+	// value of the function at a corner, or the close value on the bounds
+	private float sample(OctXYZ _p, float[] _bounds) {
+		if (close == 1
+				&& (_p.x == _bounds[0] || _p.x == _bounds[3]
+						|| _p.y == _bounds[1] || _p.y == _bounds[4]
+						|| _p.z == _bounds[2] || _p.z == _bounds[5]))
+			return closeValue;
+		return myFunction.compute(_p.x, _p.y, _p.z);
+	}
+
+	private int getCase(float[] _values, float _threshold) {
+		if (flip > 0)
+			return marchingCubesIndexSmaller(_values, _threshold);
+		return marchingCubesIndexLarger(_values, _threshold);
+	}
+
+	// on the same side of the threshold as the corners set in the case
+	private boolean isSet(float _value, float _threshold) {
+		return flip > 0 ? _value <= _threshold : _value >= _threshold;
+	}
+
+	// *************************************************************************************
+	// TRANSITIONS
+	// *************************************************************************************
+
+	// values of the corners of the small nodes that lie on the edges and faces
+	// of bigger nodes, from the bigger nodes, so that both sides cross them at
+	// the same places. Done from the biggest nodes to the smallest ones, the
+	// corners of the bigger nodes can change too.
+	private HashMap<Long, Float> getConformingValues(float[] _bounds,
+			Surface _surface) {
+		HashMap<Long, Float> conforming = new HashMap<Long, Float>();
+		ArrayList<OctNode> nodes = new ArrayList<OctNode>();
+		for (int i = 0; i < index.size(); i++) {
+			OctNode n = index.getNode(i);
+			if (n.getLevel() > 0 && OctHermite.isCached(n))
+				nodes.add(n);
+		}
+		Collections.sort(nodes, new Comparator<OctNode>() {
+			public int compare(OctNode _a, OctNode _b) {
+				return _a.getLevel() - _b.getLevel();
+			}
+		});
+		float[] values = new float[8];
+		int[] c = new int[3];
+		int[] d = new int[3];
+		for (OctNode n : nodes) {
+			int l = n.getLevel();
 			for (OCT_VERTEX v : OCT_VERTEX.getAll()) {
-				if (close == 1 && (
-						tempNode.getVertex(v).toXYZ(myOctree).x == x1 ||
-						tempNode.getVertex(v).toXYZ(myOctree).x == x2 ||
-						tempNode.getVertex(v).toXYZ(myOctree).y == y1 ||
-						tempNode.getVertex(v).toXYZ(myOctree).y == y2 ||
-						tempNode.getVertex(v).toXYZ(myOctree).z == z1 ||
-						tempNode.getVertex(v).toXYZ(myOctree).z == z2)) {
-					valueAt[v.getOrdinal()] = closeValue;
+				c[0] = n.getCodeR() + (v.r + 1) / 2;
+				c[1] = n.getCodeS() + (v.s + 1) / 2;
+				c[2] = n.getCodeT() + (v.t + 1) / 2;
+				int odd = (c[0] & 1) + (c[1] & 1) + (c[2] & 1);
+				long key = getPositionKey(c[0], c[1], c[2], l);
+				if (odd == 0 || odd == 3 || conforming.containsKey(key))
+					continue;
+				for (int i = 0; i < 3; i++) {
+					d[i] = c[i] >> 1;
+				}
+				if (odd == 1) {
+					// middle of an edge of a bigger node, mean of its ends
+					int axis = (c[0] & 1) == 1 ? 0 : ((c[1] & 1) == 1 ? 1 : 2);
+					if (isLeafAround(d, axis, l - 1)) {
+						float v0 = getValue(d[0], d[1], d[2], l - 1, _bounds,
+								conforming);
+						d[axis]++;
+						conforming.put(key, (v0 + getValue(d[0], d[1], d[2],
+								l - 1, _bounds, conforming)) / 2);
+					}
 				} else {
-					valueAt[v.getOrdinal()] = myFunction.compute(tempNode
-							.getVertex(v).toXYZ(myOctree).x, tempNode
-							.getVertex(v).toXYZ(myOctree).y, tempNode
-							.getVertex(v).toXYZ(myOctree).z);
+					// middle of a face of a bigger node on one side
+					int axis = (c[0] & 1) == 0 ? 0 : ((c[1] & 1) == 0 ? 1 : 2);
+					for (int side = -1; side <= 0; side++) {
+						d[axis] = (c[axis] >> 1) + side;
+						int i = index.getCell(d[0], d[1], d[2], l - 1);
+						if (i >= 0) {
+							int dir = side < 0 ? 1 : -1;
+							OctNode m = index.getNode(i);
+							getValues(m, _bounds, values, conforming);
+							conforming.put(key, getFaceValue(OCT_FACE.get(
+									axis == 0 ? dir : 0, axis == 1 ? dir : 0,
+									axis == 2 ? dir : 0), values,
+									getCase(values, _surface.threshold),
+									_surface.threshold));
+							break;
+						}
+					}
 				}
 			}
+		}
+		return conforming;
+	}
+
+	// true if one of the 4 cells of a level around an edge of its lattice is
+	// an indexed node
+	private boolean isLeafAround(int[] _c, int _axis, int _level) {
+		int[] cell = _c.clone();
+		int b = (_axis + 1) % 3;
+		int c = (_axis + 2) % 3;
+		for (int i = -1; i <= 0; i++) {
+			for (int j = -1; j <= 0; j++) {
+				cell[b] = _c[b] + i;
+				cell[c] = _c[c] + j;
+				if (index.getCell(cell[0], cell[1], cell[2], _level) >= 0)
+					return true;
+			}
+		}
+		return false;
+	}
+
+	// values at the corners of a node, conforming to the bigger nodes
+	private void getValues(OctNode _n, float[] _bounds, float[] _values,
+			HashMap<Long, Float> _conforming) {
+		for (OCT_VERTEX v : OCT_VERTEX.getAll()) {
+			_values[v.getOrdinal()] = getValue(_n.getCodeR() + (v.r + 1) / 2,
+					_n.getCodeS() + (v.s + 1) / 2, _n.getCodeT() + (v.t + 1)
+							/ 2, _n.getLevel(), _bounds, _conforming);
+		}
+	}
 
-			nodeSizeX = 1f / (1 << tempNode.getLevel());
-			nodeSizeY = 1f / (1 << tempNode.getLevel());
-			nodeSizeZ = 1f / (1 << tempNode.getLevel());
+	// the sampled values at the corners of a node, with the conforming ones
+	// instead where there are
+	private static void conform(OctNode _n, float[] _values,
+			float[] _conformed, HashMap<Long, Float> _conforming) {
+		for (OCT_VERTEX v : OCT_VERTEX.getAll()) {
+			Float f = _conforming.get(getPositionKey(_n.getCodeR() + (v.r + 1)
+					/ 2, _n.getCodeS() + (v.s + 1) / 2, _n.getCodeT()
+					+ (v.t + 1) / 2, _n.getLevel()));
+			_conformed[v.getOrdinal()] = f != null ? f : _values[v
+					.getOrdinal()];
+		}
+	}
 
-			int r = tempNode.getCodeR();
-			int s = tempNode.getCodeS();
-			int t = tempNode.getCodeT();
+	// value at a corner of the lattice of a level
+	private float getValue(int _r, int _s, int _t, int _level,
+			float[] _bounds, HashMap<Long, Float> _conforming) {
+		Float f = _conforming.get(getPositionKey(_r, _s, _t, _level));
+		if (f != null)
+			return f;
+		float grid = 1f / (1 << _level);
+		return sample(new OctRST(_r * grid, _s * grid, _t * grid)
+				.toXYZ(myOctree), _bounds);
+	}
 
-			int isoCase = 0;
-			if (flip >0)
-				isoCase = marchingCubesIndexSmaller(valueAt);
-			if (flip <0)
-				isoCase = marchingCubesIndexLarger(valueAt);
+	// position of a corner, on the lattice of the deepest level
+	private static long getPositionKey(int _r, int _s, int _t, int _level) {
+		int shift = OctHermite.MAX_DEPTH - _level;
+		return OctMorton.encode(_r << shift, _s << shift, _t << shift);
+	}
 
-			int j = 0;
-			tempVertex = new OctRST[3];
+	// value at the middle of a face of a node, for the smaller nodes on the
+	// other side: the mean of the corners, or if the diagonals are on
+	// different sides, the mean of the corners that the triangles of the node
+	// don't cut off, so that the smaller nodes join the same crossings
+	private float getFaceValue(OCT_FACE _f, float[] _values, int _isoCase,
+			float _threshold) {
+		float a = _values[_f.getV0().ordinal()];
+		float b = _values[_f.getV1().ordinal()];
+		float c = _values[_f.getV2().ordinal()];
+		float d = _values[_f.getV3().ordinal()];
+		if (isSet(a, _threshold) == isSet(c, _threshold)
+				&& isSet(b, _threshold) == isSet(d, _threshold)
+				&& isSet(a, _threshold) != isSet(b, _threshold)) {
+			if (isJoined(_isoCase, getEdge(_f.getV3(), _f.getV0()),
+					getEdge(_f.getV0(), _f.getV1())))
+				return (b + d) / 2;
+			return (a + c) / 2;
+		}
+		return (a + b + c + d) / 4;
+	}
 
-			while (marchingCubesLUT[isoCase][j] >= 0) {
-				for (int k = 0; k < 3; k++) {
-					int i = marchingCubesLUT[isoCase][j + k];
-					float adapt = PApplet.map(threshold, valueAt[OCT_EDGE
-							.get(i).getV0().ordinal()], valueAt[OCT_EDGE.get(i)
-							.getV1().ordinal()], -nodeSizeX / 2, nodeSizeX / 2);
-
-					// 1 position inside the node
-					tempVertex[k] = new OctRST((OCT_EDGE.get(i).r) * nodeSizeX
-							/ 2, (OCT_EDGE.get(i).s) * nodeSizeY / 2,
-							(OCT_EDGE.get(i).t) * nodeSizeZ / 2);
-
-					// 2 smooth on the edge
-					if (OCT_EDGE.get(i).r == 0)
-						tempVertex[k].r += adapt*adaptMultiplier;// * nodeSizeX / 2;
-					if (OCT_EDGE.get(i).s == 0)
-						tempVertex[k].s += adapt*adaptMultiplier;// * nodeSizeY / 2;
-					if (OCT_EDGE.get(i).t == 0)
-						tempVertex[k].t += adapt*adaptMultiplier;// * nodeSizeZ / 2;
-
-					// 3 position inside the octree
-					tempVertex[k].addSelf((float) (r + 0.5) * nodeSizeX,
-							(float) (s + 0.5) * nodeSizeY, (float) (t + 0.5)
-									* nodeSizeZ);
-				}
+	// true if a triangle of the case has vertices on both edges
+	private static boolean isJoined(int _isoCase, OCT_EDGE _e0, OCT_EDGE _e1) {
+		int[] row = marchingCubesLUT[_isoCase];
+		for (int j = 0; row[j] >= 0; j += 3) {
+			boolean e0 = false;
+			boolean e1 = false;
+			for (int k = 0; k < 3; k++) {
+				e0 |= row[j + k] == _e0.getOrdinal();
+				e1 |= row[j + k] == _e1.getOrdinal();
+			}
+			if (e0 && e1)
+				return true;
+		}
+		return false;
+	}
 
-				face = new OctMeshFace(
-						tempVertex[0].toXYZ(myOctree),
-						tempVertex[1].toXYZ(myOctree),
-						tempVertex[2].toXYZ(myOctree));
-				octMesh.faceList.add(face);
-				j = j + 3;
+	private static OCT_EDGE getEdge(OCT_VERTEX _v0, OCT_VERTEX _v1) {
+		return OCT_EDGE.get(_v0.r == _v1.r ? _v0.r : 0, _v0.s == _v1.s ? _v0.s
+				: 0, _v0.t == _v1.t ? _v0.t : 0);
+	}
+
+	// the triangles of a node in transition mode
+	private void polygonizeTransitions(OctNode _n, float[] _values,
+			float[] _bounds, EdgeBuffer _buffer, Surface _surface) {
+		TransitionCell cell = new TransitionCell();
+		cell.node = _n;
+		cell.values = _values;
+		cell.surface = _surface;
+		cell.isoCase = getCase(_values, _surface.threshold);
+		int[] row = marchingCubesLUT[cell.isoCase];
+		if (row[0] < 0)
+			return;
+		for (int j = 0; row[j] >= 0; j++) {
+			if (cell.keys[row[j]] < 0)
+				setEdgeVertex(cell, OCT_EDGE.get(row[j]), _bounds);
+		}
+		// faces next to smaller nodes
+		int l = _n.getLevel();
+		if (l < OctHermite.MAX_DEPTH) {
+			for (OCT_FACE f : OCT_FACE.values()) {
+				cell.smaller[f.ordinal()] = index.getCell(_n.getCodeR() + f.r,
+						_n.getCodeS() + f.s, _n.getCodeT() + f.t, l) == OctNodeIndex.INTERNAL;
 			}
 		}
+		for (int j = 0; row[j] >= 0; j += 3) {
+			int x = row[j];
+			int y = row[j + 1];
+			int z = row[j + 2];
+			addTriangle(cell, x, y, z, getSplit(cell, x, y, _buffer),
+					getSplit(cell, y, z, _buffer),
+					getSplit(cell, z, x, _buffer), _buffer);
+		}
 	}
-	
-	public OctXYZ getGradient(OctXYZ _v) {
-		OctXYZ g = new OctXYZ();
-		int r = 3;
-		for (int i = -r; i <= r; i++) {
-			for (int j = -r; j <= r; j++) {
-				for (int k = -r; k <= r; k++) {
-					float fac = 0.5f / (1 << myOctree.getMaxDepth());
-					OctXYZ p = new OctXYZ();
-					p = _v.add(new OctXYZ(fac * i * myOctree.getDimension().x,
-							fac * j * myOctree.getDimension().y, fac * k
-							* myOctree.getDimension().z));
-					float ff = myFunction.compute(p.x, p.y, p.z);
-					g.addSelf(_v.sub(p).scale(ff));
+
+	// the vertex on an edge of a node, the one of the edge of the bigger
+	// nodes if it is half of it, and so on
+	private void setEdgeVertex(TransitionCell _cell, OCT_EDGE _e,
+			float[] _bounds) {
+		int i = _e.getOrdinal();
+		long key = OctHermite.getEdgeKey(_cell.node, _e);
+		_cell.keys[i] = key;
+		_cell.ends[i * 2] = _cell.values[_e.getV0().ordinal()];
+		_cell.ends[i * 2 + 1] = _cell.values[_e.getV1().ordinal()];
+		int axis = (int) (key & 3);
+		long code = key >>> 7;
+		int[] c = new int[] { OctMorton.decodeR(code),
+				OctMorton.decodeS(code), OctMorton.decodeT(code) };
+		for (int l = _cell.node.getLevel(); l > 0; l--) {
+			if ((c[(axis + 1) % 3] & 1) == 1 || (c[(axis + 2) % 3] & 1) == 1)
+				return;
+			for (int k = 0; k < 3; k++) {
+				c[k] >>= 1;
+			}
+			if (!isLeafAround(c, axis, l - 1))
+				return;
+			_cell.keys[i] = OctHermite.getEdgeKey(c[0], c[1], c[2], l - 1,
+					axis);
+			_cell.ends[i * 2] = getValue(c[0], c[1], c[2], l - 1, _bounds,
+					_cell.surface.conforming);
+			c[axis]++;
+			_cell.ends[i * 2 + 1] = getValue(c[0], c[1], c[2], l - 1, _bounds,
+					_cell.surface.conforming);
+			c[axis]--;
+		}
+	}
+
+	// the crossings of the smaller nodes between the vertices on two edges of
+	// a node, if both edges are on a face next to smaller nodes, sorted from
+	// the first vertex. Their positions on the segment are added to the buffer.
+	private int[] getSplit(TransitionCell _cell, int _a, int _b,
+			EdgeBuffer _buffer) {
+		OCT_EDGE ea = OCT_EDGE.get(_a);
+		OCT_EDGE eb = OCT_EDGE.get(_b);
+		OCT_FACE f = null;
+		if (ea.r != 0 && ea.r == eb.r)
+			f = OCT_FACE.get(ea.r, 0, 0);
+		if (ea.s != 0 && ea.s == eb.s)
+			f = OCT_FACE.get(0, ea.s, 0);
+		if (ea.t != 0 && ea.t == eb.t)
+			f = OCT_FACE.get(0, 0, ea.t);
+		if (f == null || !_cell.smaller[f.ordinal()])
+			return NO_SPLIT;
+
+		float[] v = _cell.values;
+		float th = _cell.surface.threshold;
+		boolean ambiguous = isSet(v[f.getV0().ordinal()], th) == isSet(
+				v[f.getV2().ordinal()], th)
+				&& isSet(v[f.getV1().ordinal()], th) == isSet(
+						v[f.getV3().ordinal()], th)
+				&& isSet(v[f.getV0().ordinal()], th) != isSet(
+						v[f.getV1().ordinal()], th);
+		OctNode n = _cell.node;
+		int l = n.getLevel() + 1;
+		int[] center = new int[] { 2 * n.getCodeR() + 1 + f.r,
+				2 * n.getCodeS() + 1 + f.s, 2 * n.getCodeT() + 1 + f.t };
+		float centerValue = getFaceValue(f, v, _cell.isoCase, th);
+		OctRST a = getPosition(_cell.keys[_a], _cell.ends[_a * 2],
+				_cell.ends[_a * 2 + 1], th);
+		OctRST ab = getPosition(_cell.keys[_b], _cell.ends[_b * 2],
+				_cell.ends[_b * 2 + 1], th).sub(a);
+		float length = ab.dot(ab);
+
+		int[] split = new int[4];
+		float[] splitT = new float[4];
+		int count = 0;
+		for (OCT_EDGE e : f.getEdges()) {
+			// from the middle of the edge to the center of the face
+			float middleValue = (v[e.getV0().ordinal()] + v[e.getV1()
+					.ordinal()]) / 2;
+			if (isSet(middleValue, th) == isSet(centerValue, th))
+				continue;
+			if (ambiguous) {
+				// two segments, the one around the corner of this crossing
+				OCT_VERTEX corner = isSet(v[e.getV0().ordinal()], th) == isSet(
+						middleValue, th) ? e.getV0() : e.getV1();
+				if (corner.r != (ea.r != 0 ? ea.r : eb.r)
+						|| corner.s != (ea.s != 0 ? ea.s : eb.s)
+						|| corner.t != (ea.t != 0 ? ea.t : eb.t))
+					continue;
+			}
+			int[] middle = new int[] { 2 * n.getCodeR() + 1 + e.r,
+					2 * n.getCodeS() + 1 + e.s, 2 * n.getCodeT() + 1 + e.t };
+			int axis = e.r != 0 && f.r == 0 ? 0 : (e.s != 0 && f.s == 0 ? 1
+					: 2);
+			boolean first = middle[axis] < center[axis];
+			int[] c = first ? middle : center;
+			long key = OctHermite.getEdgeKey(c[0], c[1], c[2], l, axis);
+			float v0 = first ? middleValue : centerValue;
+			float v1 = first ? centerValue : middleValue;
+
+			// parameter of the crossing projected on the segment
+			float t = 0;
+			if (length > 0)
+				t = PApplet.constrain(getPosition(key, v0, v1, th).sub(a).dot(ab)
+						/ length, 0, 1);
+			int i = count++;
+			while (i > 0 && splitT[i - 1] > t) {
+				split[i] = split[i - 1];
+				splitT[i] = splitT[i - 1];
+				i--;
+			}
+			split[i] = _cell.add(key, v0, v1);
+			splitT[i] = t;
+			_buffer.addSnap(key, _cell.keys[_a], _cell.keys[_b], t);
+		}
+		return Arrays.copyOf(split, count);
+	}
+
+	// adds a triangle of a node in transition mode, split at the vertices
+	// inside its edges: a fan from the vertex opposite to a split edge
+	private void addTriangle(TransitionCell _cell, int _x, int _y, int _z,
+			int[] _xy, int[] _yz, int[] _zx, EdgeBuffer _buffer) {
+		if (_xy.length == 0) {
+			if (_yz.length > 0) {
+				addTriangle(_cell, _y, _z, _x, _yz, _zx, _xy, _buffer);
+			} else if (_zx.length > 0) {
+				addTriangle(_cell, _z, _x, _y, _zx, _xy, _yz, _buffer);
+			} else {
+				_cell.addTo(_buffer, _x);
+				_cell.addTo(_buffer, _y);
+				_cell.addTo(_buffer, _z);
+			}
+			return;
+		}
+		int last = _x;
+		for (int i = 0; i <= _xy.length; i++) {
+			int next = i < _xy.length ? _xy[i] : _y;
+			addTriangle(_cell, _z, last, next, i == 0 ? _zx : NO_SPLIT,
+					NO_SPLIT, i == _xy.length ? _yz : NO_SPLIT, _buffer);
+			last = next;
+		}
+	}
+
+	// moves the crossings inside the faces of bigger nodes onto the edges of
+	// their triangles, the biggest first since these edges can move too
+	private static void snap(long[] _edges, EdgeBuffer[] _buffers,
+			float[] _vertices) {
+		int count = 0;
+		for (EdgeBuffer b : _buffers) {
+			count += b.snapSize;
+		}
+		for (int l = 0; l <= OctHermite.MAX_DEPTH && count > 0; l++) {
+			for (EdgeBuffer b : _buffers) {
+				for (int i = 0; i < b.snapSize; i++) {
+					if (((b.snaps[i * 3] >>> 2) & 31) != l)
+						continue;
+					int e = Arrays.binarySearch(_edges, b.snaps[i * 3]);
+					int v0 = Arrays.binarySearch(_edges, b.snaps[i * 3 + 1]);
+					int v1 = Arrays.binarySearch(_edges, b.snaps[i * 3 + 2]);
+					for (int k = 0; k < 3; k++) {
+						_vertices[e * 3 + k] = _vertices[v0 * 3 + k]
+								+ b.snapT[i]
+								* (_vertices[v1 * 3 + k] - _vertices[v0 * 3 + k]);
+					}
+					count--;
 				}
 			}
 		}
-		g = g.normalize().scale(-1f);
-		return new OctXYZ(g);
+	}
+
+	private static final int[] NO_SPLIT = new int[0];
+
+	// a node in transition mode, with its vertices: the 12 edges, then the
+	// crossings of the smaller nodes inside its faces
+	private static class TransitionCell {
+		OctNode node;
+		float[] values;
+		Surface surface;
+		int isoCase;
+		boolean[] smaller = new boolean[6];
+		long[] keys = new long[12 + 6 * 4];
+		float[] ends = new float[2 * (12 + 6 * 4)];
+		int size = 12;
+
+		TransitionCell() {
+			Arrays.fill(keys, -1);
+		}
+
+		int add(long _key, float _v0, float _v1) {
+			if (size == keys.length) {
+				keys = Arrays.copyOf(keys, keys.length * 2);
+				ends = Arrays.copyOf(ends, ends.length * 2);
+			}
+			keys[size] = _key;
+			ends[size * 2] = _v0;
+			ends[size * 2 + 1] = _v1;
+			return size++;
+		}
+
+		void addTo(EdgeBuffer _buffer, int _i) {
+			_buffer.add(keys[_i], ends[_i * 2], ends[_i * 2 + 1]);
+		}
+	}
+
+	// a surface of setup(): its threshold, the values of the corners changed
+	// to conform to bigger nodes by position in transition mode, the buffers
+	// of the chunks, and the result
+	private static class Surface {
+		float threshold;
+		HashMap<Long, Float> conforming;
+		EdgeBuffer[] buffers;
+		float[] vertices = new float[0];
+		int[] indices = new int[0];
+		OctMesh mesh;
+
+		Surface(float _threshold, OctMesh _mesh) {
+			threshold = _threshold;
+			mesh = _mesh;
+		}
+	}
+
+	// triangles of a chunk of nodes, as the keys of their edges and the values
+	// at the ends. Key -1 for a loose vertex, only used once. In transition
+	// mode, the crossings to move onto a segment: the keys of the crossing and
+	// of the ends of the segment, and the parameter on the segment.
+	private static class EdgeBuffer {
+		long[] keys = new long[3 * 256];
+		float[] values = new float[2 * 3 * 256];
+		int size = 0;
+		float[] loose = new float[0];
+		int looseSize = 0;
+		long[] snaps = new long[0];
+		float[] snapT = new float[0];
+		int snapSize = 0;
+
+		void add(long _key, float _v0, float _v1) {
+			if (size == keys.length) {
+				keys = Arrays.copyOf(keys, keys.length * 2);
+				values = Arrays.copyOf(values, values.length * 2);
+			}
+			keys[size] = _key;
+			values[size * 2] = _v0;
+			values[size * 2 + 1] = _v1;
+			size++;
+		}
+
+		void addLoose(OctXYZ _v) {
+			add(-1, 0, 0);
+			if (looseSize + 3 > loose.length)
+				loose = Arrays.copyOf(loose, Math.max(48, loose.length * 2));
+			loose[looseSize++] = _v.x;
+			loose[looseSize++] = _v.y;
+			loose[looseSize++] = _v.z;
+		}
+
+		void addSnap(long _key, long _v0, long _v1, float _t) {
+			if (snapSize == snapT.length) {
+				snaps = Arrays.copyOf(snaps, Math.max(48, snaps.length * 2));
+				snapT = Arrays.copyOf(snapT, Math.max(16, snapT.length * 2));
+			}
+			snaps[snapSize * 3] = _key;
+			snaps[snapSize * 3 + 1] = _v0;
+			snaps[snapSize * 3 + 2] = _v1;
+			snapT[snapSize++] = _t;
+		}
+	}
+	
+	public OctXYZ getGradient(OctXYZ _v) {
+		return estimateGradient(myFunction, myOctree, _v, 3);
 	}
 	
 	public void drawGradient() {
@@ -197,6 +1036,10 @@ public class OctMarchingCubes extends OctPoly {
 	}
 
 	public void draw() {
+		if (retained) {
+			octMesh.drawRetained();
+			return;
+		}
 		for (OctMeshFace tempFace : octMesh.faceList) {
 			p5.beginShape(PApplet.TRIANGLES);
 			p5.vertex(tempFace.v0.x, tempFace.v0.y, tempFace.v0.z);
@@ -206,7 +1049,7 @@ public class OctMarchingCubes extends OctPoly {
 		}	
 	}
 
-	private int marchingCubesIndexSmaller(float[] valueAt) {
+	private int marchingCubesIndexSmaller(float[] valueAt, float threshold) {
 		int i = 0;
 		if (valueAt[0] <= threshold) {
 			i |= 1;
@@ -235,7 +1078,7 @@ public class OctMarchingCubes extends OctPoly {
 		return i;
 	}
 
-	private int marchingCubesIndexLarger(float[] valueAt) {
+	private int marchingCubesIndexLarger(float[] valueAt, float threshold) {
 		int i = 0;
 		if (valueAt[0] >= threshold) {
 			i |= 1;
@@ -34,9 +34,12 @@
 package oct.polygonization;
 
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 
 import oct.octree.OctXYZ;
 import processing.core.PApplet;
+import processing.core.PConstants;
+import processing.core.PShape;
 
 /**
  * Basic mesh class.
@@ -44,7 +47,12 @@ import processing.core.PApplet;
 public class OctMesh {
 
 	PApplet p5;
-	public HashSet<OctMeshFace> faceList = new HashSet<OctMeshFace>();
+	// in the order of insertion, so that the exports are reproducible
+	public HashSet<OctMeshFace> faceList = new LinkedHashSet<OctMeshFace>();
+
+	// retained geometry
+	private PShape shape;
+	private int shapeFaceCount;
 	
 	public OctMesh(PApplet _p5) {
 		p5 = _p5;
@@ -55,13 +63,48 @@ public class OctMesh {
 	}
 	
 	public void addFace(OctXYZ _v0, OctXYZ _v1, OctXYZ _v2) {
-		faceList.add(new OctMeshFace(_v0,_v1,_v2,new OctXYZ()));
+		faceList.add(new OctMeshFace(_v0,_v1,_v2));
 	}
 	
 	public void addFace(OctMeshFace _f) {
 		faceList.add(_f);
 	}
 	
+	/**
+	 * Gets the faces as an indexed mesh of triangles with welded vertices.
+	 */
+	public OctIndexedMesh toIndexedMesh() {
+		OctIndexedMesh tempMesh = new OctIndexedMesh();
+		for (OctMeshFace tempFace : faceList) {
+			tempMesh.addFace(tempFace);
+		}
+		return tempMesh;
+	}
+
+	/**
+	 * Writes the faces to a binary STL file, without the renderer. Returns
+	 * false if the file could not be written.
+	 */
+	public boolean exportSTL(String _path) {
+		return OctMeshWriter.export(new OctSTLWriter(), this, _path);
+	}
+
+	/**
+	 * Writes the faces to a binary PLY file, 3 vertices per triangle. Use
+	 * toIndexedMesh() to share the vertices.
+	 */
+	public boolean exportPLY(String _path) {
+		return OctMeshWriter.export(new OctPLYWriter(), this, _path);
+	}
+
+	/**
+	 * Writes the faces to an OBJ file, 3 vertices per triangle. Use
+	 * toIndexedMesh() to share the vertices.
+	 */
+	public boolean exportOBJ(String _path) {
+		return OctMeshWriter.export(new OctOBJWriter(), this, _path);
+	}
+
 	public void export() {
 		p5.beginRaw(PApplet.DXF, "output.dxf");
 		for (OctMeshFace tempFace : faceList) {
@@ -75,4 +118,52 @@ public class OctMesh {
 		p5.endRaw();
 	}
 	
+	/**
+	 * Draws the faces from a PShape built at the first call. The shape is
+	 * built again only if the mesh has changed, so a static mesh costs one
+	 * call per frame. The current fill and stroke are used.
+	 */
+	public void drawRetained() {
+		if (shape == null || shapeFaceCount != faceList.size())
+			buildShape();
+		p5.shape(shape);
+	}
+
+	/**
+	 * Discards the retained shape. Needed after changing 'faceList' or the
+	 * vertices of the faces directly.
+	 */
+	public void invalidate() {
+		shape = null;
+	}
+
+	private void buildShape() {
+		PShape quads = p5.createShape();
+		PShape triangles = p5.createShape();
+		quads.beginShape(PConstants.QUADS);
+		triangles.beginShape(PConstants.TRIANGLES);
+		int quadCount = 0;
+		for (OctMeshFace tempFace : faceList) {
+			PShape tempShape = triangles;
+			if (tempFace.type == 4) {
+				tempShape = quads;
+				quadCount++;
+			}
+			tempShape.vertex(tempFace.v0.x, tempFace.v0.y, tempFace.v0.z);
+			tempShape.vertex(tempFace.v1.x, tempFace.v1.y, tempFace.v1.z);
+			tempShape.vertex(tempFace.v2.x, tempFace.v2.y, tempFace.v2.z);
+			if (tempFace.type == 4)
+				tempShape.vertex(tempFace.v3.x, tempFace.v3.y, tempFace.v3.z);
+		}
+		quads.endShape();
+		triangles.endShape();
+		shape = p5.createShape(PConstants.GROUP);
+		if (quadCount > 0)
+			shape.addChild(quads);
+		if (quadCount < faceList.size())
+			shape.addChild(triangles);
+		shape.disableStyle();
+		shapeFaceCount = faceList.size();
+	}
+
 }
@@ -0,0 +1,238 @@
+/**
+ * OCT Octree
+ * A Processing library to create, modify and display Octree structures.
+ * http://www.thomaswegener.ch/OCT
+ *
+ * Based on:
+ * Hanan Samet, Neighbor finding in images represented by octrees
+ * Computer Vision, Graphics, and Image Processing, Volume 46, Issue 3, June 1989, Pages 367-386
+ * http://dx.doi.org/10.1016/0734-189X(89)90038-8.
+ * (http://www.sciencedirect.com/science/article/pii/0734189X89900388)
+ *
+ * Copyright (C) 2015 Thomas Wegener
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ * 
+ * @author      Thomas Wegener
+ * @modified    2015
+ * @version     0.1 (1)
+ */
+
+package oct.polygonization;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import oct.octree.OctXYZ;
+import processing.core.PApplet;
+
+/**
+ * Writes meshes to a file through a buffered channel, without a PApplet. The
+ * triangles are written as they come, so a mesh can be exported while it is
+ * produced. Open the file, write triangles, faces or whole meshes, and close
+ * it. See OctSTLWriter, OctPLYWriter and OctOBJWriter.
+ */
+public abstract class OctMeshWriter {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	protected FileChannel channel;
+	protected ByteBuffer buffer;
+	protected int vertexCount = 0;
+	protected int triangleCount = 0;
+
+	/**
+	 * Creates or replaces the file and writes the header. The file is closed
+	 * if it fails.
+	 */
+	public void open(String _path) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(_path, "rw");
+		boolean opened = false;
+		try {
+			file.setLength(0);
+			channel = file.getChannel();
+			buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(
+					ByteOrder.LITTLE_ENDIAN);
+			vertexCount = 0;
+			triangleCount = 0;
+			writeHeader();
+			opened = true;
+		} finally {
+			if (!opened) {
+				file.close();
+				channel = null;
+				buffer = null;
+			}
+		}
+	}
+
+	/**
+	 * Writes one triangle from the XYZ coordinates of its 3 vertices.
+	 */
+	public abstract void writeTriangle(float _x0, float _y0, float _z0,
+			float _x1, float _y1, float _z1, float _x2, float _y2, float _z2)
+			throws IOException;
+
+	public void writeTriangle(OctXYZ _v0, OctXYZ _v1, OctXYZ _v2)
+			throws IOException {
+		writeTriangle(_v0.x, _v0.y, _v0.z, _v1.x, _v1.y, _v1.z, _v2.x, _v2.y,
+				_v2.z);
+	}
+
+	/**
+	 * Writes a face of an OctMesh, quads as two triangles.
+	 */
+	public void writeFace(OctMeshFace _f) throws IOException {
+		writeTriangle(_f.v0, _f.v1, _f.v2);
+		if (_f.type == 4)
+			writeTriangle(_f.v0, _f.v2, _f.v3);
+	}
+
+	public void writeMesh(OctMesh _mesh) throws IOException {
+		for (OctMeshFace tempFace : _mesh.faceList) {
+			writeFace(tempFace);
+		}
+	}
+
+	/**
+	 * Writes the triangles of an indexed mesh. Formats with indices keep the
+	 * shared vertices.
+	 */
+	public void writeMesh(OctIndexedMesh _mesh) throws IOException {
+		float[] p = _mesh.getPositions();
+		int[] t = _mesh.getIndices();
+		for (int i = 0; i < t.length; i += 3) {
+			int a = t[i] * 3;
+			int b = t[i + 1] * 3;
+			int c = t[i + 2] * 3;
+			writeTriangle(p[a], p[a + 1], p[a + 2], p[b], p[b + 1], p[b + 2],
+					p[c], p[c + 1], p[c + 2]);
+		}
+	}
+
+	/**
+	 * Writes what is left, completes the header and closes the file.
+	 */
+	public void close() throws IOException {
+		try {
+			finish();
+			flush();
+		} finally {
+			channel.close();
+			channel = null;
+			buffer = null;
+		}
+	}
+
+	public int getVertexCount() {
+		return vertexCount;
+	}
+
+	public int getTriangleCount() {
+		return triangleCount;
+	}
+
+	/**
+	 * Writes a mesh to a file and closes it. Prints an error and returns false
+	 * if the file could not be written.
+	 */
+	public static boolean export(OctMeshWriter _writer, OctMesh _mesh,
+			String _path) {
+		try {
+			_writer.open(_path);
+			try {
+				_writer.writeMesh(_mesh);
+			} finally {
+				_writer.close();
+			}
+			return true;
+		} catch (IOException e) {
+			PApplet.println("ERROR in export(): could not write " + _path
+					+ " (" + e.getMessage() + ").");
+			return false;
+		}
+	}
+
+	public static boolean export(OctMeshWriter _writer, OctIndexedMesh _mesh,
+			String _path) {
+		try {
+			_writer.open(_path);
+			try {
+				_writer.writeMesh(_mesh);
+			} finally {
+				_writer.close();
+			}
+			return true;
+		} catch (IOException e) {
+			PApplet.println("ERROR in export(): could not write " + _path
+					+ " (" + e.getMessage() + ").");
+			return false;
+		}
+	}
+
+	protected abstract void writeHeader() throws IOException;
+
+	/**
+	 * Called by close(), before the buffer is flushed.
+	 */
+	protected abstract void finish() throws IOException;
+
+	/**
+	 * Makes sure that the buffer has room for _bytes.
+	 */
+	protected void ensure(int _bytes) throws IOException {
+		if (buffer.remaining() < _bytes)
+			flush();
+	}
+
+	protected void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Writes an ASCII text at the current position.
+	 */
+	protected void writeText(String _text) throws IOException {
+		int length = _text.length();
+		for (int i = 0; i < length; i += BUFFER_SIZE) {
+			int end = Math.min(length, i + BUFFER_SIZE);
+			ensure(end - i);
+			for (int j = i; j < end; j++) {
+				buffer.put((byte) _text.charAt(j));
+			}
+		}
+	}
+
+	/**
+	 * Writes bytes at a position of the file, after flushing the buffer.
+	 */
+	protected void writeAt(long _position, ByteBuffer _bytes)
+			throws IOException {
+		flush();
+		long position = _position;
+		while (_bytes.hasRemaining()) {
+			position += channel.write(_bytes, position);
+		}
+	}
+
+}
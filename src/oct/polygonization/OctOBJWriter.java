@@ -0,0 +1,103 @@
+/**
+ * OCT Octree
+ * A Processing library to create, modify and display Octree structures.
+ * http://www.thomaswegener.ch/OCT
+ *
+ * Based on:
+ * Hanan Samet, Neighbor finding in images represented by octrees
+ * Computer Vision, Graphics, and Image Processing, Volume 46, Issue 3, June 1989, Pages 367-386
+ * http://dx.doi.org/10.1016/0734-189X(89)90038-8.
+ * (http://www.sciencedirect.com/science/article/pii/0734189X89900388)
+ *
+ * Copyright (C) 2015 Thomas Wegener
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ * 
+ * @author      Thomas Wegener
+ * @modified    2015
+ * @version     0.1 (1)
+ */
+
+package oct.polygonization;
+
+import java.io.IOException;
+
+/**
+ * Writes Wavefront OBJ files (text). Each triangle written one by one gets
+ * its own 3 vertices, indexed meshes keep their shared vertices and their
+ * normals, if any.
+ */
+public class OctOBJWriter extends OctMeshWriter {
+
+	private int normalCount = 0;
+
+	public void writeTriangle(float _x0, float _y0, float _z0, float _x1,
+			float _y1, float _z1, float _x2, float _y2, float _z2)
+			throws IOException {
+		writeVertex("v ", _x0, _y0, _z0);
+		writeVertex("v ", _x1, _y1, _z1);
+		writeVertex("v ", _x2, _y2, _z2);
+		writeText("f " + (vertexCount + 1) + " " + (vertexCount + 2) + " "
+				+ (vertexCount + 3) + "\n");
+		vertexCount += 3;
+		triangleCount++;
+	}
+
+	public void writeMesh(OctIndexedMesh _mesh) throws IOException {
+		float[] p = _mesh.getPositions();
+		float[] n = _mesh.getNormals();
+		int[] t = _mesh.getIndices();
+		for (int i = 0; i < p.length; i += 3) {
+			writeVertex("v ", p[i], p[i + 1], p[i + 2]);
+		}
+		if (n != null) {
+			for (int i = 0; i < n.length; i += 3) {
+				writeVertex("vn ", n[i], n[i + 1], n[i + 2]);
+			}
+		}
+		// indices start at 1
+		StringBuilder line = new StringBuilder();
+		for (int i = 0; i < t.length; i += 3) {
+			line.setLength(0);
+			line.append('f');
+			for (int k = 0; k < 3; k++) {
+				line.append(' ').append(vertexCount + t[i + k] + 1);
+				if (n != null)
+					line.append("//").append(normalCount + t[i + k] + 1);
+			}
+			line.append('\n');
+			writeText(line.toString());
+		}
+		vertexCount += p.length / 3;
+		if (n != null)
+			normalCount += n.length / 3;
+		triangleCount += t.length / 3;
+	}
+
+	protected void writeHeader() throws IOException {
+		normalCount = 0;
+		writeText("# OCT\n");
+	}
+
+	protected void finish() throws IOException {
+	}
+
+	private void writeVertex(String _type, float _x, float _y, float _z)
+			throws IOException {
+		writeText(_type + _x + " " + _y + " " + _z + "\n");
+	}
+
+}
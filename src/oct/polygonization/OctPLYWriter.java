@@ -0,0 +1,136 @@
+/**
+ * OCT Octree
+ * A Processing library to create, modify and display Octree structures.
+ * http://www.thomaswegener.ch/OCT
+ *
+ * Based on:
+ * Hanan Samet, Neighbor finding in images represented by octrees
+ * Computer Vision, Graphics, and Image Processing, Volume 46, Issue 3, June 1989, Pages 367-386
+ * http://dx.doi.org/10.1016/0734-189X(89)90038-8.
+ * (http://www.sciencedirect.com/science/article/pii/0734189X89900388)
+ *
+ * Copyright (C) 2015 Thomas Wegener
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ * 
+ * @author      Thomas Wegener
+ * @modified    2015
+ * @version     0.1 (1)
+ */
+
+package oct.polygonization;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Writes binary little endian PLY files. The vertices are written as they
+ * come, the faces after them when the file is closed: the triangles written
+ * one by one get their own 3 vertices, indexed meshes keep their shared
+ * vertices (only their index buffer is kept until then).
+ */
+public class OctPLYWriter extends OctMeshWriter {
+
+	// faces to write on close, in order
+	private ArrayList<int[]> blockIndices = new ArrayList<int[]>();
+	private ArrayList<int[]> blockRanges = new ArrayList<int[]>();
+
+	public void writeTriangle(float _x0, float _y0, float _z0, float _x1,
+			float _y1, float _z1, float _x2, float _y2, float _z2)
+			throws IOException {
+		ensure(36);
+		buffer.putFloat(_x0).putFloat(_y0).putFloat(_z0);
+		buffer.putFloat(_x1).putFloat(_y1).putFloat(_z1);
+		buffer.putFloat(_x2).putFloat(_y2).putFloat(_z2);
+		// consecutive triangles are one block without indices
+		int last = blockRanges.size() - 1;
+		if (last >= 0 && blockIndices.get(last) == null)
+			blockRanges.get(last)[1]++;
+		else {
+			blockIndices.add(null);
+			blockRanges.add(new int[] { vertexCount, 1 });
+		}
+		vertexCount += 3;
+		triangleCount++;
+	}
+
+	public void writeMesh(OctIndexedMesh _mesh) throws IOException {
+		float[] p = _mesh.getPositions();
+		for (int i = 0; i < p.length; i += 3) {
+			ensure(12);
+			buffer.putFloat(p[i]).putFloat(p[i + 1]).putFloat(p[i + 2]);
+		}
+		blockIndices.add(_mesh.getIndices());
+		blockRanges.add(new int[] { vertexCount, _mesh.getTriangleCount() });
+		vertexCount += p.length / 3;
+		triangleCount += _mesh.getTriangleCount();
+	}
+
+	protected void writeHeader() throws IOException {
+		blockIndices.clear();
+		blockRanges.clear();
+		writeText(getHeader());
+	}
+
+	protected void finish() throws IOException {
+		for (int b = 0; b < blockRanges.size(); b++) {
+			int[] indices = blockIndices.get(b);
+			int offset = blockRanges.get(b)[0];
+			int count = blockRanges.get(b)[1];
+			for (int i = 0; i < count * 3; i += 3) {
+				ensure(13);
+				buffer.put((byte) 3);
+				if (indices == null) {
+					buffer.putInt(offset + i).putInt(offset + i + 1)
+							.putInt(offset + i + 2);
+				} else {
+					buffer.putInt(offset + indices[i])
+							.putInt(offset + indices[i + 1])
+							.putInt(offset + indices[i + 2]);
+				}
+			}
+		}
+		blockIndices.clear();
+		blockRanges.clear();
+		// same length as the header written by open()
+		String header = getHeader();
+		ByteBuffer bytes = ByteBuffer.allocate(header.length());
+		for (int i = 0; i < header.length(); i++) {
+			bytes.put((byte) header.charAt(i));
+		}
+		bytes.flip();
+		writeAt(0, bytes);
+	}
+
+	// the counts have a fixed width, so that they can be written on close
+	private String getHeader() {
+		return "ply\nformat binary_little_endian 1.0\ncomment OCT\n"
+				+ "element vertex " + pad(vertexCount) + "\n"
+				+ "property float x\nproperty float y\nproperty float z\n"
+				+ "element face " + pad(triangleCount) + "\n"
+				+ "property list uchar int vertex_indices\nend_header\n";
+	}
+
+	private static String pad(int _value) {
+		String s = Integer.toString(_value);
+		while (s.length() < 10) {
+			s = "0" + s;
+		}
+		return s;
+	}
+
+}
@@ -33,6 +33,9 @@
 
 package oct.polygonization;
 
+import oct.math.OctFunction;
+import oct.math.OctGradientFunction;
+import oct.octree.OctOctree;
 import oct.octree.OctXYZ;
 import processing.core.PApplet;
 import oct.polygonization.OctMesh;
@@ -42,9 +45,160 @@ import oct.polygonization.OctMesh;
 public abstract class OctPoly {
 
 	OctMesh octMesh;
+
+	// draw from a cached shape
+	protected boolean retained = false;
+
+	/**
+	 * Gradient estimators, see setGradientMode().
+	 */
+	public static final int GRADIENT_STENCIL = 0;
+	public static final int GRADIENT_CENTRAL = 1;
+	public static final int GRADIENT_ANALYTIC = 2;
+
+	protected int gradientMode = GRADIENT_STENCIL;
+
+	// hermite data, can be shared with other polygonizations
+	protected OctHermite hermite;
+
+	// setup in steps, see step(): the number of steps, -1 if not started, the
+	// steps done, and true once endSteps() is done
+	private int stepCount = -1;
+	private int stepDone = 0;
+	private boolean stepEnded = false;
 	
+	/**
+	 * Polygonizes the octree. The dual polygonizations keep the values of the
+	 * function at the corners until the nodes, the function or the threshold
+	 * change: call invalidate() after changing the function in place.
+	 */
 	public abstract void setup();
 
+	/**
+	 * Polygonizes the surfaces of several thresholds, for example the layers
+	 * of a fabrication, and returns one mesh per threshold in their order.
+	 * The threshold is not changed, getMesh() gives the mesh of the last one.
+	 * The dual polygonizations sample the corners only once.
+	 */
+	public OctMesh[] setup(float[] _thresholds) {
+		OctMesh[] meshes = new OctMesh[_thresholds.length];
+		if (_thresholds.length == 0)
+			return meshes;
+		float tempThreshold = getThreshold();
+		for (int i = 0; i < _thresholds.length; i++) {
+			clear();
+			setThreshold(_thresholds[i]);
+			setup();
+			meshes[i] = getMesh();
+		}
+		setThreshold(tempThreshold);
+		return meshes;
+	}
+
+	/**
+	 * setup(float[]) of the polygonizations that don't depend on the
+	 * threshold: polygonizes once and returns the mesh once per threshold,
+	 * getMesh() gives the last one. The other meshes are new OctMesh with a
+	 * face list of their own but the same OctMeshFace objects as getMesh():
+	 * changing the vertices of a face changes all of them, call invalidate()
+	 * on each mesh drawn retained afterwards.
+	 */
+	protected OctMesh[] setupOnce(float[] _thresholds) {
+		OctMesh[] meshes = new OctMesh[_thresholds.length];
+		if (_thresholds.length == 0)
+			return meshes;
+		setup();
+		OctMesh tempMesh = getMesh();
+		for (int i = 0; i < meshes.length - 1; i++) {
+			meshes[i] = new OctMesh(tempMesh.p5);
+			meshes[i].faceList.addAll(tempMesh.faceList);
+		}
+		meshes[meshes.length - 1] = tempMesh;
+		return meshes;
+	}
+
+	/**
+	 * Resumable setup() for the draw loop of a sketch: does the next steps of
+	 * the polygonization, a few nodes each, until _nanosBudget nanoseconds are
+	 * spent, at least one step per call. Returns true once the setup is done,
+	 * the next calls do nothing until resetSteps(). In between, getMesh() and
+	 * draw() show the faces done so far and getProgress() tells how far it is.
+	 * Don't change the octree or the settings in between, setup() cancels it.
+	 * The polygonizations that can't be split do their setup() in one step.
+	 */
+	public boolean step(long _nanosBudget) {
+		if (stepCount < 0) {
+			stepCount = beginSteps();
+			stepDone = 0;
+			stepEnded = false;
+		}
+		if (stepEnded)
+			return true;
+		long start = System.nanoTime();
+		if (stepDone < stepCount) {
+			do {
+				doStep(stepDone++);
+			} while (stepDone < stepCount
+					&& System.nanoTime() - start < _nanosBudget);
+			// the end can take a while too, at the next call
+			if (System.nanoTime() - start >= _nanosBudget)
+				return false;
+		}
+		endSteps();
+		stepEnded = true;
+		return true;
+	}
+
+	/**
+	 * Gets the progress of step(), from 0 (not started) to 1 (done).
+	 */
+	public float getProgress() {
+		if (stepCount < 0)
+			return 0;
+		return (stepDone + (stepEnded ? 1 : 0)) / (float) (stepCount + 1);
+	}
+
+	/**
+	 * The next step() starts a new setup, for example after changing the
+	 * threshold.
+	 */
+	public void resetSteps() {
+		stepCount = -1;
+	}
+
+	/**
+	 * Starts a setup in steps, returns the number of steps.
+	 */
+	protected int beginSteps() {
+		return 1;
+	}
+
+	/**
+	 * Does a step of the setup, in their order.
+	 */
+	protected void doStep(int _step) {
+		setup();
+	}
+
+	/**
+	 * Ends a setup in steps, after the last one.
+	 */
+	protected void endSteps() {
+	}
+
+	/**
+	 * The whole setup in steps at once, for the setup() of the polygonizations
+	 * made of steps. Cancels step().
+	 */
+	protected void runSteps() {
+		resetSteps();
+		int count = beginSteps();
+		for (int i = 0; i < count; i++) {
+			doStep(i);
+		}
+		endSteps();
+	}
+
 	public abstract void draw();
 	
 	public float getQEFclip() {
@@ -61,6 +215,83 @@ public abstract class OctPoly {
 		return new OctXYZ();
 	}
 	
+	/**
+	 * Sets how the gradient of the function is estimated:
+	 * GRADIENT_STENCIL (default) weights a cube of 5^3 or 7^3 samples,
+	 * GRADIENT_CENTRAL uses 6 samples (central differences), and
+	 * GRADIENT_ANALYTIC asks the function if it is an OctGradientFunction,
+	 * else uses central differences. Analytic gradients ignore the closing of
+	 * the volume (closeToggle()).
+	 */
+	public void setGradientMode(int _mode) {
+		if (_mode < GRADIENT_STENCIL || _mode > GRADIENT_ANALYTIC) {
+			PApplet.println("ERROR in setGradientMode(): unknown mode. Mode not changed.");
+			return;
+		}
+		gradientMode = _mode;
+	}
+
+	public int getGradientMode() {
+		return gradientMode;
+	}
+
+	/**
+	 * Estimates the normalized gradient of the function at _v with the current
+	 * mode. The samples are spaced by half a cell of the max depth of the
+	 * octree, _radius is the radius of the stencil, in samples.
+	 */
+	protected OctXYZ estimateGradient(OctFunction _f, OctOctree _octree,
+			OctXYZ _v, int _radius) {
+		float fac = 0.5f / (1 << _octree.getMaxDepth());
+		OctXYZ dim = _octree.getDimension();
+		float gx = 0;
+		float gy = 0;
+		float gz = 0;
+		if (gradientMode == GRADIENT_ANALYTIC
+				&& _f instanceof OctGradientFunction) {
+			float[] g = new float[3];
+			((OctGradientFunction) _f).computeGradient(_v.x, _v.y, _v.z, g);
+			gx = g[0];
+			gy = g[1];
+			gz = g[2];
+		} else if (gradientMode != GRADIENT_STENCIL) {
+			float hx = fac * dim.x;
+			float hy = fac * dim.y;
+			float hz = fac * dim.z;
+			gx = (sample(_f, _v.x + hx, _v.y, _v.z) - sample(_f, _v.x - hx,
+					_v.y, _v.z)) / (2 * hx);
+			gy = (sample(_f, _v.x, _v.y + hy, _v.z) - sample(_f, _v.x,
+					_v.y - hy, _v.z)) / (2 * hy);
+			gz = (sample(_f, _v.x, _v.y, _v.z + hz) - sample(_f, _v.x, _v.y,
+					_v.z - hz)) / (2 * hz);
+		} else {
+			// weighted sum of the samples around, oriented to the lower values
+			for (int i = -_radius; i <= _radius; i++) {
+				for (int j = -_radius; j <= _radius; j++) {
+					for (int k = -_radius; k <= _radius; k++) {
+						float px = _v.x + fac * i * dim.x;
+						float py = _v.y + fac * j * dim.y;
+						float pz = _v.z + fac * k * dim.z;
+						float ff = sample(_f, px, py, pz);
+						gx += (_v.x - px) * ff;
+						gy += (_v.y - py) * ff;
+						gz += (_v.z - pz) * ff;
+					}
+				}
+			}
+			return new OctXYZ(gx, gy, gz).normalize().scale(-1f);
+		}
+		return new OctXYZ(gx, gy, gz).normalize();
+	}
+
+	/**
+	 * Value of the function used to estimate the gradient. Overridden to close
+	 * the volume.
+	 */
+	protected float sample(OctFunction _f, float _x, float _y, float _z) {
+		return _f.compute(_x, _y, _z);
+	}
+
 	public void drawGradient() {
 		PApplet.println("Not implemented for this polygonization");
 	}
@@ -99,10 +330,67 @@ public abstract class OctPoly {
 		return 0f;
 	}
 	
+	/**
+	 * If true, draw() uses a PShape of the mesh that is only built again after
+	 * setup(), instead of sending every face at every frame.
+	 */
+	public void setRetained(boolean _retained) {
+		retained = _retained;
+	}
+
+	public boolean isRetained() {
+		return retained;
+	}
+	
+	/**
+	 * Shares the corner values and the edge crossings with other dual
+	 * polygonizations of the same octree and function. The store is replaced
+	 * at setup() if it belongs to another octree. The function is compared by
+	 * reference, call invalidate() (or getHermite().clear()) after changing a
+	 * field of it.
+	 */
+	public void setHermite(OctHermite _hermite) {
+		hermite = _hermite;
+	}
+
+	public OctHermite getHermite() {
+		return hermite;
+	}
+
+	/**
+	 * The next setup() evaluates the function again, for example after
+	 * changing a field of it.
+	 */
+	public void invalidate() {
+		if (hermite != null)
+			hermite.clear();
+	}
+
+	/**
+	 * Gets the store of the hermite data of the octree, created if needed.
+	 */
+	protected OctHermite getHermite(OctOctree _octree) {
+		if (hermite == null || hermite.getOctree() != _octree)
+			hermite = new OctHermite(_octree);
+		return hermite;
+	}
+
 	public OctMesh getMesh() {
 		
 		return octMesh;
 		
 	}
 
+	/**
+	 * Gets the result of setup() as an indexed mesh of triangles with welded
+	 * vertices. Built from getMesh() unless the polygonization writes one
+	 * directly.
+	 */
+	public OctIndexedMesh getIndexedMesh() {
+		OctMesh tempMesh = getMesh();
+		if (tempMesh == null)
+			return new OctIndexedMesh();
+		return tempMesh.toIndexedMesh();
+	}
+
 }
@@ -0,0 +1,262 @@
+/**
+ * OCT Octree
+ * A Processing library to create, modify and display Octree structures.
+ * http://www.thomaswegener.ch/OCT
+ *
+ * Based on:
+ * Hanan Samet, Neighbor finding in images represented by octrees
+ * Computer Vision, Graphics, and Image Processing, Volume 46, Issue 3, June 1989, Pages 367-386
+ * http://dx.doi.org/10.1016/0734-189X(89)90038-8.
+ * (http://www.sciencedirect.com/science/article/pii/0734189X89900388)
+ *
+ * Copyright (C) 2015 Thomas Wegener
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ * 
+ * @author      Thomas Wegener
+ * @modified    2015
+ * @version     0.1 (1)
+ */
+
+package oct.polygonization;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import oct.math.OctFunction;
+import oct.math.OctQEF;
+import oct.octree.OctNode;
+import oct.octree.OctOctree;
+import oct.octree.OctXYZ;
+
+/**
+ * Simplification for the dual contouring polygonizations, based on:
+ * Tao Ju, Frank Losasso, Scott Schaefer, Joe Warren, Dual Contouring of
+ * Hermite Data, SIGGRAPH 2002. The QEFs of sibling nodes are added into
+ * their parent, bottom-up, and the siblings are replaced by the parent if its
+ * vertex fits the planes well enough and the surface keeps its topology. The
+ * missing siblings are seen as empty, since the octrees usually only keep the
+ * nodes around the surface. The octree itself is not changed.
+ */
+class OctQEFSimplify {
+
+	private OctPoly poly;
+	private OctFunction function;
+	private OctOctree octree;
+	private float threshold;
+	private int flip;
+
+	private OctQEF solver = new OctQEF();
+	private float[] point = new float[3];
+	private float[] mass = new float[3];
+	private boolean[] inside = new boolean[27];
+
+	OctQEFSimplify(OctPoly _poly, OctFunction _function, OctOctree _octree,
+			float _threshold, int _flip) {
+		poly = _poly;
+		function = _function;
+		octree = _octree;
+		threshold = _threshold;
+		flip = _flip;
+	}
+
+	/**
+	 * Gets the nodes after simplification. _qefs holds the QEFs of the nodes
+	 * crossed by the surface and _vertices their vertex, both get the merged
+	 * nodes instead of their children. A parent is kept if the RMS distance
+	 * of its vertex to the planes is at most _tolerance. Parents are not
+	 * created above the min depth of the octree.
+	 */
+	HashSet<OctNode> simplify(Collection<OctNode> _nodes,
+			HashMap<OctNode, OctQEF> _qefs, HashMap<OctNode, OctXYZ> _vertices,
+			float _tolerance, float _clip, float _adapt) {
+		HashSet<OctNode> nodes = new HashSet<OctNode>(_nodes);
+		int maxLevel = 0;
+		for (OctNode n : nodes) {
+			maxLevel = Math.max(maxLevel, n.getLevel());
+		}
+		// nodes by level, the merged parents are added to the level above
+		ArrayList<ArrayList<OctNode>> levels = new ArrayList<ArrayList<OctNode>>();
+		for (int l = 0; l <= maxLevel; l++) {
+			levels.add(new ArrayList<OctNode>());
+		}
+		for (OctNode n : nodes) {
+			levels.get(n.getLevel()).add(n);
+		}
+		// nodes of the level above that still contain smaller nodes
+		HashSet<OctNode> blocked = new HashSet<OctNode>();
+		for (int l = maxLevel; l > Math.max(0, octree.getMinDepth()); l--) {
+			HashSet<OctNode> parents = new HashSet<OctNode>();
+			for (OctNode n : levels.get(l)) {
+				parents.add(n.getParent(1));
+			}
+			HashSet<OctNode> nextBlocked = new HashSet<OctNode>();
+			for (OctNode b : blocked) {
+				nextBlocked.add(b.getParent(1));
+			}
+			for (OctNode parent : parents) {
+				if (blocked.contains(parent) || nodes.contains(parent)
+						|| !merge(parent, _qefs, _vertices, _tolerance, _clip,
+								_adapt)) {
+					nextBlocked.add(parent.getParent(1));
+					continue;
+				}
+				for (OctNode child : parent.getChildren()) {
+					nodes.remove(child);
+				}
+				nodes.add(parent);
+				levels.get(l - 1).add(parent);
+			}
+			blocked = nextBlocked;
+		}
+		return nodes;
+	}
+
+	// merges the QEFs of the children, if the parent can replace them. A
+	// parent without surface always can.
+	private boolean merge(OctNode _parent, HashMap<OctNode, OctQEF> _qefs,
+			HashMap<OctNode, OctXYZ> _vertices, float _tolerance, float _clip,
+			float _adapt) {
+		ArrayList<OctNode> children = _parent.getChildren();
+		OctQEF merged = new OctQEF();
+		for (OctNode child : children) {
+			OctQEF q = _qefs.get(child);
+			if (q != null)
+				merged.add(q);
+		}
+		if (merged.getCount() > 0) {
+			if (!isTopologySafe(_parent))
+				return false;
+			solver.set(merged);
+			float error = solver.solve(_clip, point);
+			if (Math.sqrt(error / merged.getCount()) > _tolerance
+					|| !isInNode(_parent, point))
+				return false;
+			solver.getMassPoint(mass);
+			_qefs.put(_parent, merged);
+			_vertices.put(_parent, new OctXYZ((point[0] - mass[0]) * _adapt
+					+ mass[0], (point[1] - mass[1]) * _adapt + mass[1],
+					(point[2] - mass[2]) * _adapt + mass[2]));
+		}
+		for (OctNode child : children) {
+			_qefs.remove(child);
+			_vertices.remove(child);
+		}
+		// the polygonizations find the nodes by their vertex
+		if (merged.getCount() == 0)
+			_vertices.put(_parent, _parent.getCenter().toXYZ(octree));
+		return true;
+	}
+
+	/**
+	 * Topology test of Ju et al. on the 27 corners of the children: the
+	 * corners of the parent must form a manifold configuration, and the sign
+	 * in the middle of each edge, face and of the node must be the sign of
+	 * one of the corners of that edge, face or node.
+	 */
+	private boolean isTopologySafe(OctNode _n) {
+		float size = 1f / (1 << (_n.getLevel() + 1));
+		OctXYZ origin = octree.getOrigin();
+		OctXYZ dim = octree.getDimension();
+		for (int i = 0; i < 27; i++) {
+			float x = origin.x + (2 * _n.getCodeR() + i % 3) * size * dim.x;
+			float y = origin.y + (2 * _n.getCodeS() + i / 3 % 3) * size * dim.y;
+			float z = origin.z + (2 * _n.getCodeT() + i / 9) * size * dim.z;
+			inside[i] = poly.sample(function, x, y, z) * flip > threshold * flip;
+		}
+		// middle points: each coordinate 1 can be replaced by 0 or 2
+		for (int i = 0; i < 27; i++) {
+			int[] p = { i % 3, i / 3 % 3, i / 9 };
+			if (p[0] != 1 && p[1] != 1 && p[2] != 1)
+				continue;
+			boolean found = false;
+			for (int c = 0; c < 8 && !found; c++) {
+				int j = 0;
+				int m = 1;
+				boolean valid = true;
+				for (int d = 0; d < 3; d++) {
+					int v = (c >> d & 1) * 2;
+					if (p[d] != 1 && p[d] != v)
+						valid = false;
+					j += v * m;
+					m *= 3;
+				}
+				found = valid && inside[j] == inside[i];
+			}
+			if (!found)
+				return false;
+		}
+		// corners of each sign connected by the edges of the node
+		return getComponents(true) <= 1 && getComponents(false) <= 1;
+	}
+
+	private int getComponents(boolean _inside) {
+		int[] group = new int[8];
+		for (int c = 0; c < 8; c++) {
+			group[c] = c;
+		}
+		for (int c = 0; c < 8; c++) {
+			for (int d = 0; d < 3; d++) {
+				int o = c ^ (1 << d);
+				if (getCorner(c) == _inside && getCorner(o) == _inside) {
+					int a = find(group, c);
+					int b = find(group, o);
+					group[a] = b;
+				}
+			}
+		}
+		int count = 0;
+		for (int c = 0; c < 8; c++) {
+			if (getCorner(c) == _inside && find(group, c) == c)
+				count++;
+		}
+		return count;
+	}
+
+	// sign of a corner of the node, bits R, S, T
+	private boolean getCorner(int _c) {
+		return inside[(_c & 1) * 2 + (_c >> 1 & 1) * 6 + (_c >> 2 & 1) * 18];
+	}
+
+	private static int find(int[] _group, int _c) {
+		int c = _c;
+		while (_group[c] != c) {
+			c = _group[c];
+		}
+		return c;
+	}
+
+	private boolean isInNode(OctNode _n, float[] _p) {
+		float size = 1f / (1 << _n.getLevel());
+		OctXYZ origin = octree.getOrigin();
+		OctXYZ dim = octree.getDimension();
+		for (int d = 0; d < 3; d++) {
+			float o = d == 0 ? origin.x : d == 1 ? origin.y : origin.z;
+			float s = d == 0 ? dim.x : d == 1 ? dim.y : dim.z;
+			int code = d == 0 ? _n.getCodeR() : d == 1 ? _n.getCodeS() : _n
+					.getCodeT();
+			float a = o + code * size * s;
+			float b = a + size * s;
+			float eps = Math.abs(size * s) * 1e-4f;
+			if (_p[d] < Math.min(a, b) - eps || _p[d] > Math.max(a, b) + eps)
+				return false;
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,92 @@
+/**
+ * OCT Octree
+ * A Processing library to create, modify and display Octree structures.
+ * http://www.thomaswegener.ch/OCT
+ *
+ * Based on:
+ * Hanan Samet, Neighbor finding in images represented by octrees
+ * Computer Vision, Graphics, and Image Processing, Volume 46, Issue 3, June 1989, Pages 367-386
+ * http://dx.doi.org/10.1016/0734-189X(89)90038-8.
+ * (http://www.sciencedirect.com/science/article/pii/0734189X89900388)
+ *
+ * Copyright (C) 2015 Thomas Wegener
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ * 
+ * @author      Thomas Wegener
+ * @modified    2015
+ * @version     0.1 (1)
+ */
+
+package oct.polygonization;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Writes binary STL files: 50 bytes per triangle, with its normal. The
+ * number of triangles is written in the header when the file is closed.
+ */
+public class OctSTLWriter extends OctMeshWriter {
+
+	public void writeTriangle(float _x0, float _y0, float _z0, float _x1,
+			float _y1, float _z1, float _x2, float _y2, float _z2)
+			throws IOException {
+		ensure(50);
+		// normal, from the cross product of the edges
+		float ux = _x1 - _x0;
+		float uy = _y1 - _y0;
+		float uz = _z1 - _z0;
+		float vx = _x2 - _x0;
+		float vy = _y2 - _y0;
+		float vz = _z2 - _z0;
+		float nx = uy * vz - uz * vy;
+		float ny = uz * vx - ux * vz;
+		float nz = ux * vy - uy * vx;
+		float l = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+		if (l > 0) {
+			nx /= l;
+			ny /= l;
+			nz /= l;
+		}
+		buffer.putFloat(nx).putFloat(ny).putFloat(nz);
+		buffer.putFloat(_x0).putFloat(_y0).putFloat(_z0);
+		buffer.putFloat(_x1).putFloat(_y1).putFloat(_z1);
+		buffer.putFloat(_x2).putFloat(_y2).putFloat(_z2);
+		buffer.putShort((short) 0);
+		vertexCount += 3;
+		triangleCount++;
+	}
+
+	protected void writeHeader() throws IOException {
+		// 80 bytes, must not start with 'solid', then the number of triangles
+		StringBuilder header = new StringBuilder("OCT binary STL");
+		while (header.length() < 80) {
+			header.append(' ');
+		}
+		writeText(header.toString());
+		ensure(4);
+		buffer.putInt(0);
+	}
+
+	protected void finish() throws IOException {
+		ByteBuffer count = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+		count.putInt(0, triangleCount);
+		writeAt(80, count);
+	}
+
+}